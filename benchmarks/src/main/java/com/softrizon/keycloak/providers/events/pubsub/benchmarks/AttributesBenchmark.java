@@ -0,0 +1,63 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message attribute map building, with and without a pattern alias.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributesBenchmark {
+
+    private Event event;
+    private AdminEvent adminEvent;
+    private EventPattern userPattern;
+    private EventPattern aliasedUserPattern;
+    private EventPattern adminPattern;
+
+    @Setup
+    public void setUp() {
+        EventGenerator generator = new EventGenerator(42, 10, 10);
+        event = generator.userEvent();
+        adminEvent = generator.adminEvent(0);
+        userPattern = EventGenerator.parse(Collections.singletonList("USER:*:*:*:*")).get(0);
+        aliasedUserPattern = EventGenerator.parse(Collections.singletonList("USER:*:*:*:*|USR")).get(0);
+        adminPattern = EventGenerator.parse(Collections.singletonList("ADMIN:*:*:*:*")).get(0);
+    }
+
+    @Benchmark
+    public Map<String, String> userEvent() {
+        return PubSubConfig.getMessageAttributes(event, userPattern);
+    }
+
+    @Benchmark
+    public Map<String, String> userEventWithAlias() {
+        return PubSubConfig.getMessageAttributes(event, aliasedUserPattern);
+    }
+
+    @Benchmark
+    public Map<String, String> adminEvent() {
+        return PubSubConfig.getMessageAttributes(adminEvent, adminPattern);
+    }
+}
@@ -0,0 +1,95 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Minimal Keycloak runtime for driving the listener outside of a server.
+ */
+public final class BenchmarkSupport {
+
+    private static final String PREFIX = "pubsub.benchmark.";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Creates a config from the required settings plus {@code overrides}, keyed by the listener's variable names.
+     */
+    public static PubSubConfig config(Map<String, String> overrides) {
+        return PubSubConfig.create(scope(overrides));
+    }
+
+    /**
+     * Creates a config scope, as Keycloak passes to the factory, from the required settings plus {@code overrides}.
+     */
+    public static Config.Scope scope(Map<String, String> overrides) {
+        Map<String, String> values = new HashMap<>();
+        values.put("pubsub_service_account_credentials_file_path", "/dev/null");
+        values.put("pubsub_project_id", "benchmark-project");
+        values.put("pubsub_topic_id", "benchmark-topic");
+        values.putAll(overrides);
+        values.forEach((key, value) -> System.setProperty(PREFIX + key, value));
+
+        return new Config.SystemPropertiesScope(PREFIX);
+    }
+
+    /**
+     * Keeps the per message INFO logging of the listener from dominating the measurements.
+     */
+    public static void quietLogging() {
+        java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+        java.util.logging.Logger.getLogger("com.softrizon").setLevel(Level.WARNING);
+    }
+
+    /**
+     * A session that only records the transactions enlisted after completion, see {@link Session#complete()}.
+     */
+    public static Session session() {
+        return new Session();
+    }
+
+    public static final class Session {
+        private final List<KeycloakTransaction> afterCompletion = new ArrayList<>();
+        private final KeycloakSession session;
+
+        private Session() {
+            KeycloakTransactionManager manager = (KeycloakTransactionManager) Proxy.newProxyInstance(
+                    BenchmarkSupport.class.getClassLoader(), new Class<?>[]{KeycloakTransactionManager.class},
+                    (proxy, method, args) -> {
+                        if ("enlistAfterCompletion".equals(method.getName())) {
+                            afterCompletion.add((KeycloakTransaction) args[0]);
+                        }
+                        return null;
+                    });
+            session = (KeycloakSession) Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(),
+                    new Class<?>[]{KeycloakSession.class},
+                    (proxy, method, args) -> "getTransactionManager".equals(method.getName()) ? manager : null);
+        }
+
+        public KeycloakSession get() {
+            return session;
+        }
+
+        /**
+         * Commits the transactions enlisted so far, as Keycloak does once the request transaction completes.
+         */
+        public void complete() {
+            for (KeycloakTransaction transaction : afterCompletion) {
+                transaction.begin();
+                transaction.commit();
+            }
+            afterCompletion.clear();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.softrizon.keycloak.providers.events.pubsub.compression.MessageCompressor;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost against bytes saved of the compression codecs, on admin event bodies with representations of growing size.
+ * The compressed size of each configuration is printed once before its measurements.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({"GZIP", "ZSTD"})
+    public MessageCompressor.Codec codec;
+
+    @Param({"-1", "1"})
+    public int level;
+
+    @Param({"4096", "65536"})
+    public int representationBytes;
+
+    private MessageCompressor compressor;
+    private ByteString body;
+
+    @Setup
+    public void setUp() throws IOException {
+        compressor = new MessageCompressor(codec, 0, level);
+        body = new EventMessageSerializer().serialize(new EventGenerator(42, 10, 10).adminEvent(representationBytes));
+
+        final ByteString compressed = compressor.compress(body);
+        final int size = compressed != null ? compressed.size() : body.size();
+        System.out.printf(Locale.US, "%n%s level %d: %d -> %d bytes, %.1f%% saved%n", codec, level, body.size(), size,
+                100.0 * (body.size() - size) / body.size());
+    }
+
+    @Benchmark
+    public ByteString compress() {
+        return compressor.compress(body);
+    }
+}
@@ -0,0 +1,82 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventHandler;
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventListenerProvider;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.MessagePublisher;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherPool;
+import org.keycloak.events.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions emitting several user events, such as a login with required actions: one message per event against one
+ * envelope per transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvelopeBenchmark {
+
+    static final int EVENT_COUNT = 1024;
+
+    @Param({"false", "true"})
+    public boolean envelope;
+
+    @Param({"1", "4", "16"})
+    public int eventsPerTransaction;
+
+    private InMemoryPublisher publisher;
+    private PubSubEventHandler handler;
+    private BenchmarkSupport.Session session;
+    private Event[] events;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("pubsub_envelope_enabled", Boolean.toString(envelope));
+        PubSubConfig config = BenchmarkSupport.config(overrides);
+        publisher = new InMemoryPublisher();
+        PublisherPool publishers = new PublisherPool(config.getProjectId(), config.getTopicId(),
+                config.createBatchingSettings(), (topicName, batchingSettings, stripe) -> publisher);
+        MessagePublisher messagePublisher = new MessagePublisher(publishers, config, null, null, null, null, null);
+        handler = new PubSubEventHandler(messagePublisher, config, new EventMessageSerializer(), null, null, null,
+                null, null, null, null);
+        session = BenchmarkSupport.session();
+
+        EventGenerator generator = new EventGenerator(42, 100, 100);
+        events = new Event[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events[i] = generator.userEvent();
+        }
+    }
+
+    @Benchmark
+    public long transaction() {
+        PubSubEventListenerProvider provider = new PubSubEventListenerProvider(handler, session.get());
+        for (int i = 0; i < eventsPerTransaction; i++) {
+            provider.onEvent(events[index++ & (EVENT_COUNT - 1)]);
+        }
+        session.complete();
+        return publisher.getMessages();
+    }
+}
@@ -0,0 +1,141 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternParser;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic, reproducible Keycloak events and pattern sets for the benchmarks.
+ */
+public final class EventGenerator {
+
+    public static final String FORMAT = EventPattern.Format.JSON_API_V1.toString();
+
+    private static final EventType[] USER_EVENT_TYPES = {
+            EventType.LOGIN, EventType.CODE_TO_TOKEN, EventType.REFRESH_TOKEN, EventType.LOGOUT,
+            EventType.LOGIN_ERROR, EventType.REGISTER, EventType.UPDATE_PROFILE};
+    private static final OperationType[] OPERATION_TYPES = OperationType.values();
+    private static final ResourceType[] RESOURCE_TYPES = {
+            ResourceType.USER, ResourceType.CLIENT, ResourceType.REALM_ROLE_MAPPING, ResourceType.GROUP};
+
+    private final Random random;
+    private final int realmCount;
+    private final int clientCount;
+
+    public EventGenerator(long seed, int realmCount, int clientCount) {
+        this.random = new Random(seed);
+        this.realmCount = realmCount;
+        this.clientCount = clientCount;
+    }
+
+    public Event userEvent() {
+        Event event = new Event();
+        event.setId(UUID.randomUUID().toString());
+        event.setTime(System.currentTimeMillis());
+        event.setType(USER_EVENT_TYPES[random.nextInt(USER_EVENT_TYPES.length)]);
+        event.setRealmId(realm(random.nextInt(realmCount)));
+        event.setClientId(client(random.nextInt(clientCount)));
+        event.setUserId(UUID.randomUUID().toString());
+        event.setSessionId(UUID.randomUUID().toString());
+        event.setIpAddress("10.0." + random.nextInt(256) + "." + random.nextInt(256));
+        if (event.getType() == EventType.LOGIN_ERROR) event.setError("invalid_user_credentials");
+
+        Map<String, String> details = new HashMap<>();
+        details.put("auth_method", "openid-connect");
+        details.put("auth_type", "code");
+        details.put("redirect_uri", "https://app.example.com/callback");
+        details.put("code_id", UUID.randomUUID().toString());
+        details.put("username", "user" + random.nextInt(100_000) + "@example.com");
+        event.setDetails(details);
+
+        return event;
+    }
+
+    public AdminEvent adminEvent(int representationBytes) {
+        AdminEvent event = new AdminEvent();
+        event.setId(UUID.randomUUID().toString());
+        event.setTime(System.currentTimeMillis());
+        event.setRealmId(realm(random.nextInt(realmCount)));
+        event.setOperationType(OPERATION_TYPES[random.nextInt(OPERATION_TYPES.length)]);
+        event.setResourceType(RESOURCE_TYPES[random.nextInt(RESOURCE_TYPES.length)]);
+        event.setResourcePath("users/" + UUID.randomUUID());
+
+        AuthDetails authDetails = new AuthDetails();
+        authDetails.setRealmId("master");
+        authDetails.setClientId("admin-cli");
+        authDetails.setUserId(UUID.randomUUID().toString());
+        authDetails.setIpAddress("10.0.0.1");
+        event.setAuthDetails(authDetails);
+
+        if (representationBytes > 0) event.setRepresentation(representation(representationBytes));
+
+        return event;
+    }
+
+    /**
+     * Returns {@code count} user patterns where only the last one is broad, the worst case for a linear scan.
+     */
+    public static List<String> userPatterns(int count) {
+        List<String> patterns = new ArrayList<>(count);
+        for (int i = 0; i < count - 1; i++) {
+            patterns.add(String.format(Locale.US, "USER:%s:%s:%s:%s|ALIAS_%d", realm(i), i % 2 == 0 ? "SUCCESS" : "*",
+                    client(i), USER_EVENT_TYPES[i % USER_EVENT_TYPES.length], i));
+        }
+        patterns.add("USER:*:*:*:*");
+        return patterns;
+    }
+
+    public static List<String> adminPatterns(int count) {
+        List<String> patterns = new ArrayList<>(count);
+        for (int i = 0; i < count - 1; i++) {
+            patterns.add(String.format(Locale.US, "ADMIN:%s:*:%s:%s", realm(i),
+                    RESOURCE_TYPES[i % RESOURCE_TYPES.length], OPERATION_TYPES[i % OPERATION_TYPES.length]));
+        }
+        patterns.add("ADMIN:*:*:*:*");
+        return patterns;
+    }
+
+    public static List<EventPattern> parse(List<String> patterns) {
+        EventPatternParser parser = new EventPatternParser();
+        List<EventPattern> parsed = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            parsed.add(parser.parse(FORMAT, pattern));
+        }
+        return parsed;
+    }
+
+    static String realm(int index) {
+        return "realm-" + index;
+    }
+
+    static String client(int index) {
+        return "client-" + index;
+    }
+
+    private String representation(int bytes) {
+        // A user representation like JSON document padded with attributes up to the requested size
+        StringBuilder builder = new StringBuilder(bytes + 64);
+        builder.append("{\"id\":\"").append(UUID.randomUUID()).append("\",\"username\":\"john.doe\",")
+                .append("\"enabled\":true,\"attributes\":{");
+        int index = 0;
+        while (builder.length() < bytes) {
+            if (index > 0) builder.append(',');
+            builder.append("\"attribute").append(index++).append("\":[\"value with \\\"quotes\\\" ")
+                    .append(random.nextInt()).append("\"]");
+        }
+        return builder.append("}}").toString();
+    }
+}
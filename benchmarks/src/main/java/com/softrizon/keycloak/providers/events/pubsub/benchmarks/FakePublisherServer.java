@@ -0,0 +1,127 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Pub/Sub publisher service, reachable over a plaintext local channel.
+ * <p>
+ * Each publish request is answered after a fixed latency. A fraction of the requests can fail with
+ * {@code UNAVAILABLE} and requests beyond a messages per second budget are rejected with {@code RESOURCE_EXHAUSTED},
+ * both of which the client library retries.
+ */
+public class FakePublisherServer implements AutoCloseable {
+
+    private final long latencyMs;
+    private final double errorRate;
+    private final long maxMessagesPerSecond;
+    private final Server server;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "fake-pubsub");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, AtomicLong> receivedMessagesByTopic = new ConcurrentHashMap<>();
+    private final AtomicLong receivedMessages = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private final AtomicLong windowStart = new AtomicLong();
+    private final AtomicLong windowMessages = new AtomicLong();
+
+    public FakePublisherServer(long latencyMs, double errorRate, long maxMessagesPerSecond) throws IOException {
+        this.latencyMs = latencyMs;
+        this.errorRate = errorRate;
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+        server = ServerBuilder.forPort(0).addService(new PublisherService()).build().start();
+    }
+
+    public String getTarget() {
+        return "localhost:" + server.getPort();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    public Map<String, Long> getReceivedMessagesByTopic() {
+        Map<String, Long> counts = new TreeMap<>();
+        receivedMessagesByTopic.forEach((topic, count) -> counts.put(topic, count.get()));
+        return counts;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        server.shutdownNow();
+        scheduler.shutdownNow();
+        server.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private boolean throttle(int messages) {
+        if (maxMessagesPerSecond <= 0) return false;
+
+        final long second = System.nanoTime() / TimeUnit.SECONDS.toNanos(1);
+        final long start = windowStart.get();
+        if (start != second && windowStart.compareAndSet(start, second)) windowMessages.set(0);
+
+        return windowMessages.addAndGet(messages) > maxMessagesPerSecond;
+    }
+
+    private final class PublisherService extends PublisherGrpc.PublisherImplBase {
+
+        @Override
+        public void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+            scheduler.schedule(() -> respond(request, responseObserver), latencyMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void respond(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+            if (throttle(request.getMessagesCount())) {
+                throttledRequests.incrementAndGet();
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription("Throttled").asRuntimeException());
+                return;
+            }
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failedRequests.incrementAndGet();
+                responseObserver.onError(Status.UNAVAILABLE.withDescription("Injected").asRuntimeException());
+                return;
+            }
+
+            receivedMessagesByTopic.computeIfAbsent(request.getTopic(), topic -> new AtomicLong())
+                    .addAndGet(request.getMessagesCount());
+            PublishResponse.Builder response = PublishResponse.newBuilder();
+            for (int i = 0; i < request.getMessagesCount(); i++) {
+                response.addMessageIds(Long.toString(receivedMessages.incrementAndGet()));
+                receivedBytes.addAndGet(request.getMessages(i).getSerializedSize());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+    }
+}
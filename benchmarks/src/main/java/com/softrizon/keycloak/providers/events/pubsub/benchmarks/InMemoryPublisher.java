@@ -0,0 +1,31 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.pubsub.v1.PublisherInterface;
+import com.google.pubsub.v1.PubsubMessage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publisher stand-in that acknowledges every message immediately, so only the listener's own work is measured.
+ */
+public class InMemoryPublisher implements PublisherInterface {
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    @Override
+    public ApiFuture<String> publish(PubsubMessage message) {
+        bytes.addAndGet(message.getSerializedSize());
+        return ApiFutures.immediateFuture(Long.toString(messages.incrementAndGet()));
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+}
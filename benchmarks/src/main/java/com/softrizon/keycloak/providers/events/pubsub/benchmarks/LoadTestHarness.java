@@ -0,0 +1,166 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventListenerProviderFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.events.EventListenerProvider;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives sustained synthetic user event load through the listener factory against the {@link FakePublisherServer},
+ * and reports throughput, commit-to-ack latency percentiles and heap usage.
+ * <p>
+ * The first {@code warmup} seconds run the same load but are left out of the totals. Percentiles cover a rolling
+ * window of the last {@value #WINDOW_SECONDS} seconds.
+ * <p>
+ * Harness options: {@code rate} (events per second), {@code seconds}, {@code warmup}, {@code threads}, {@code latencyMs},
+ * {@code errorRate} and {@code throttle} (messages per second accepted by the fake server). Any other
+ * {@code name=value} argument is passed to the listener as a configuration variable, for example
+ * {@code pubsub_async_worker_count=2}.
+ * <p>
+ * Example: {@code java -cp target/benchmarks.jar ...benchmarks.LoadTestHarness rate=5000 seconds=60 latencyMs=30}
+ */
+public final class LoadTestHarness {
+
+    static final String LATENCY_METER = "keycloak.pubsub.publish.latency";
+    static final String PUBLISH_METER = "keycloak.pubsub.publish";
+    static final long WINDOW_SECONDS = 10;
+
+    private LoadTestHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        options.put("rate", "1000");
+        options.put("seconds", "30");
+        options.put("warmup", "10");
+        options.put("threads", "4");
+        options.put("latencyMs", "20");
+        options.put("errorRate", "0");
+        options.put("throttle", "0");
+        final Map<String, String> overrides = new HashMap<>();
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) throw new IllegalArgumentException("Expected name=value but found " + arg);
+            (options.containsKey(pair[0]) ? options : overrides).put(pair[0], pair[1]);
+        }
+
+        final long rate = Long.parseLong(options.get("rate"));
+        final long seconds = Long.parseLong(options.get("seconds"));
+        final long warmup = Long.parseLong(options.get("warmup"));
+        final int threads = Integer.parseInt(options.get("threads"));
+
+        BenchmarkSupport.quietLogging();
+        Metrics.globalRegistry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (!LATENCY_METER.equals(id.getName())) return config;
+                return DistributionStatisticConfig.builder()
+                        .percentiles(0.5, 0.99)
+                        .expiry(Duration.ofSeconds(WINDOW_SECONDS))
+                        .bufferLength(2)
+                        .build()
+                        .merge(config);
+            }
+        });
+        Metrics.addRegistry(new SimpleMeterRegistry());
+
+        try (FakePublisherServer server = new FakePublisherServer(Long.parseLong(options.get("latencyMs")),
+                Double.parseDouble(options.get("errorRate")), Long.parseLong(options.get("throttle")))) {
+            overrides.put("pubsub_emulator_host", server.getTarget());
+            PubSubEventListenerProviderFactory factory = new PubSubEventListenerProviderFactory();
+            factory.init(BenchmarkSupport.scope(overrides));
+            factory.postInit(null);
+
+            final AtomicLong sent = new AtomicLong();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + seconds);
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final EventGenerator generator = new EventGenerator(i, 100, 100);
+                final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * threads / Math.max(1, rate);
+                workers[i] = new Thread(() -> {
+                    long next = System.nanoTime();
+                    while (next < deadline) {
+                        BenchmarkSupport.Session session = BenchmarkSupport.session();
+                        EventListenerProvider provider = factory.create(session.get());
+                        provider.onEvent(generator.userEvent());
+                        session.complete();
+                        sent.incrementAndGet();
+
+                        next += intervalNanos;
+                        LockSupport.parkNanos(next - System.nanoTime());
+                    }
+                }, "load-" + i);
+                workers[i].start();
+            }
+
+            final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long peakHeap = 0;
+            long sentBaseline = 0;
+            double ackedBaseline = 0;
+            for (long second = 1 - warmup; second <= seconds; second++) {
+                Thread.sleep(1000);
+                long heap = memory.getHeapMemoryUsage().getUsed();
+                if (second > 0) peakHeap = Math.max(peakHeap, heap);
+                System.out.printf(Locale.US, "%4ds sent=%d acked=%d %s heap=%dMB%n", second, sent.get(),
+                        (long) acked(), percentiles(), heap >> 20);
+                if (second == 0) {
+                    sentBaseline = sent.get();
+                    ackedBaseline = acked();
+                }
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            final long closeStart = System.nanoTime();
+            factory.close();
+            final double measuredAcks = acked() - ackedBaseline;
+            System.out.printf(Locale.US, "%nevents sent:       %d (after warm-up)%n", sent.get() - sentBaseline);
+            System.out.printf(Locale.US, "messages acked:    %d (%.1f msg/s, during measurement)%n", (long) measuredAcks,
+                    measuredAcks / seconds);
+            System.out.printf(Locale.US, "messages received: %d (%d bytes, including warm-up and retries)%n",
+                    server.getReceivedMessages(), server.getReceivedBytes());
+            System.out.printf(Locale.US, "messages by topic: %s%n", server.getReceivedMessagesByTopic());
+            System.out.printf(Locale.US, "requests failed:   %d injected, %d throttled%n", server.getFailedRequests(),
+                    server.getThrottledRequests());
+            System.out.printf(Locale.US, "commit-to-ack:     %s (last %d seconds)%n", percentiles(), WINDOW_SECONDS);
+            System.out.printf(Locale.US, "peak heap:         %dMB%n", peakHeap >> 20);
+            System.out.printf(Locale.US, "shutdown:          %dms%n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closeStart));
+        }
+    }
+
+    private static double acked() {
+        Counter counter = Metrics.globalRegistry.find(PUBLISH_METER).tag("outcome", "success").counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private static String percentiles() {
+        Timer timer = Metrics.globalRegistry.find(LATENCY_METER).timer();
+        if (timer == null) return "p50=n/a p99=n/a";
+
+        StringBuilder builder = new StringBuilder();
+        for (ValueAtPercentile percentile : timer.takeSnapshot().percentileValues()) {
+            if (builder.length() > 0) builder.append(' ');
+            builder.append(String.format(Locale.US, "p%.0f=%.1fms", percentile.percentile() * 100,
+                    percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        return builder.toString();
+    }
+}
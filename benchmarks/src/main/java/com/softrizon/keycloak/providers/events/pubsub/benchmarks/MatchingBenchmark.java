@@ -0,0 +1,74 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternMatcher;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternParser;
+import org.keycloak.events.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event pattern matching: the compiled matcher against the former linear regex scan over every pattern.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingBenchmark {
+
+    static final int EVENT_COUNT = 1024;
+
+    @Param({"1", "50", "500"})
+    public int patternCount;
+
+    private List<EventPattern> patterns;
+    private EventPatternMatcher matcher;
+    private Event[] events;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        patterns = EventGenerator.parse(EventGenerator.userPatterns(patternCount));
+        matcher = new EventPatternParser().compile(EventPattern.Who.USER, patterns);
+
+        EventGenerator generator = new EventGenerator(42, 100, 100);
+        events = new Event[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events[i] = generator.userEvent();
+        }
+    }
+
+    @Benchmark
+    public Optional<EventPattern> compiledMatcher() {
+        return matcher.match(nextEvent());
+    }
+
+    @Benchmark
+    public Optional<EventPattern> linearRegexScan() {
+        final String eventName = PubSubConfig.createEventName(nextEvent());
+        return patterns.stream()
+                .filter(e -> e.pattern.matcher(eventName.toUpperCase(Locale.US)).matches())
+                .findFirst();
+    }
+
+    private Event nextEvent() {
+        return events[index++ & (EVENT_COUNT - 1)];
+    }
+}
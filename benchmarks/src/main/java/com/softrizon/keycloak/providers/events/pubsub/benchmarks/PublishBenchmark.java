@@ -0,0 +1,108 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventHandler;
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventListenerProvider;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.diagnostics.DiagnosticsBuffer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.MessagePublisher;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherPool;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end listener path for one event per session: provider creation, transaction completion, matching,
+ * encoding, attribute building and publishing against an in-memory publisher. {@link #idleSession()} measures the
+ * cost of the listener for the sessions that emit no event at all.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+    static final int EVENT_COUNT = 1024;
+
+    @Param({"1", "50", "500"})
+    public int patternCount;
+
+    private PubSubConfig config;
+    private InMemoryPublisher publisher;
+    private PubSubEventHandler handler;
+    private BenchmarkSupport.Session session;
+    private Event[] events;
+    private AdminEvent[] adminEvents;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        BenchmarkSupport.quietLogging();
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("keycloak_user_event_patterns", String.join(",", EventGenerator.userPatterns(patternCount)));
+        overrides.put("keycloak_admin_event_patterns", String.join(",", EventGenerator.adminPatterns(patternCount)));
+        config = BenchmarkSupport.config(overrides);
+        EventMessageSerializer serializer = new EventMessageSerializer();
+        publisher = new InMemoryPublisher();
+        PublisherPool publishers = new PublisherPool(config.getProjectId(), config.getTopicId(),
+                config.createBatchingSettings(), (topicName, batchingSettings, stripe) -> publisher);
+        DiagnosticsBuffer diagnostics = new DiagnosticsBuffer(config.getDiagnosticsBufferSize(),
+                config.getDiagnosticsSampleInterval(), 0);
+        MessagePublisher messagePublisher = new MessagePublisher(publishers, config, null, null, null, null,
+                diagnostics);
+        handler = new PubSubEventHandler(messagePublisher, config, serializer, null, null, null, null, null, null,
+                diagnostics);
+        session = BenchmarkSupport.session();
+
+        EventGenerator generator = new EventGenerator(42, 100, 100);
+        events = new Event[EVENT_COUNT];
+        adminEvents = new AdminEvent[EVENT_COUNT];
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            events[i] = generator.userEvent();
+            adminEvents[i] = generator.adminEvent(2048);
+        }
+    }
+
+    @Benchmark
+    public long userEvent() {
+        PubSubEventListenerProvider provider = createProvider();
+        provider.onEvent(events[index++ & (EVENT_COUNT - 1)]);
+        session.complete();
+        return publisher.getMessages();
+    }
+
+    @Benchmark
+    public long adminEvent() {
+        PubSubEventListenerProvider provider = createProvider();
+        provider.onEvent(adminEvents[index++ & (EVENT_COUNT - 1)], true);
+        session.complete();
+        return publisher.getMessages();
+    }
+
+    @Benchmark
+    public PubSubEventListenerProvider idleSession() {
+        PubSubEventListenerProvider provider = createProvider();
+        session.complete();
+        return provider;
+    }
+
+    private PubSubEventListenerProvider createProvider() {
+        return new PubSubEventListenerProvider(handler, session.get());
+    }
+}
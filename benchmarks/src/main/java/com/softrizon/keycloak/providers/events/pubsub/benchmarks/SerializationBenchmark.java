@@ -0,0 +1,113 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+import com.softrizon.keycloak.providers.events.pubsub.events.AdminEventMessage;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternParser;
+import com.softrizon.keycloak.providers.events.pubsub.events.UserEventMessage;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of user and admin events: the streaming JSON serializer against the former object mapper round trip, the
+ * PROTOBUF_V1 encoding, admin representations embedded as raw JSON instead of escaped strings, and patterns projecting
+ * a few fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"0", "2048", "65536"})
+    public int representationBytes;
+
+    private EventMessageSerializer serializer;
+    private EventMessageSerializer rawSerializer;
+    private ObjectMapper objectMapper;
+    private Event event;
+    private AdminEvent adminEvent;
+    private EventPattern userProjection;
+    private EventPattern adminProjection;
+
+    @Setup
+    public void setUp() {
+        serializer = new EventMessageSerializer();
+        rawSerializer = new EventMessageSerializer(EventMessageSerializer.RepresentationMode.RAW, 0,
+                EventMessageSerializer.RepresentationOverflow.TRUNCATE);
+        objectMapper = new ObjectMapper();
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+        EventGenerator generator = new EventGenerator(42, 10, 10);
+        event = generator.userEvent();
+        adminEvent = generator.adminEvent(representationBytes);
+
+        EventPatternParser parser = new EventPatternParser();
+        userProjection = parser.parse("JSON_API_V1", "USER:*:*:*:*||||include=type;userId;time");
+        adminProjection = parser.parse("JSON_API_V1", "ADMIN:*:*:*:*||||include=resourcePath;operationType;time");
+    }
+
+    @Benchmark
+    public ByteString userEventSerializer() throws IOException {
+        return serializer.serialize(event);
+    }
+
+    @Benchmark
+    public ByteString userEventObjectMapper() throws IOException {
+        return ByteString.copyFromUtf8(objectMapper.writeValueAsString(UserEventMessage.create(event)));
+    }
+
+    @Benchmark
+    public ByteString userEventProtobuf() throws IOException {
+        return serializer.serialize(event, EventPattern.Format.PROTOBUF_V1);
+    }
+
+    @Benchmark
+    public ByteString userEventProjected() throws IOException {
+        return serializer.serialize(event, userProjection.format, userProjection.projection);
+    }
+
+    @Benchmark
+    public ByteString adminEventSerializer() throws IOException {
+        return serializer.serialize(adminEvent);
+    }
+
+    @Benchmark
+    public ByteString adminEventRawRepresentation() throws IOException {
+        return rawSerializer.serialize(adminEvent);
+    }
+
+    @Benchmark
+    public ByteString adminEventObjectMapper() throws IOException {
+        return ByteString.copyFromUtf8(objectMapper.writeValueAsString(AdminEventMessage.create(adminEvent)));
+    }
+
+    @Benchmark
+    public ByteString adminEventProtobuf() throws IOException {
+        return serializer.serialize(adminEvent, EventPattern.Format.PROTOBUF_V1);
+    }
+
+    @Benchmark
+    public ByteString adminEventProjected() throws IOException {
+        return serializer.serialize(adminEvent, adminProjection.format, true, adminProjection.projection);
+    }
+}
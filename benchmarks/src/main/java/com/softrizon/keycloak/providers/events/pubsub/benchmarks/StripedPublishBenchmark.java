@@ -0,0 +1,108 @@
+package com.softrizon.keycloak.providers.events.pubsub.benchmarks;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.pubsub.v1.PubsubMessage;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherPool;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.keycloak.events.Event;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publish throughput of many threads against the {@link FakePublisherServer}, by number of publisher stripes.
+ * <p>
+ * Every stripe is a real Pub/Sub client publisher with its own channel and executor. Flow control blocks publishing
+ * threads once 10000 messages are outstanding per stripe, so the measured rate is the sustained acknowledged rate.
+ * Run with as many threads as the target machine has cores, e.g. {@code -t 32}, to see the contention stripes remove.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class StripedPublishBenchmark {
+
+    private static final int MESSAGE_COUNT = 1024; // Power of two
+
+    @Param({"1", "2", "4", "8"})
+    public int stripes;
+
+    private FakePublisherServer server;
+    private ManagedChannel[] channels;
+    private PublisherPool publishers;
+    private PubsubMessage[] messages;
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkSupport.quietLogging();
+        Map<String, String> overrides = new HashMap<>();
+        overrides.put("pubsub_flow_control_max_outstanding_element_count", "10000");
+        overrides.put("pubsub_flow_control_max_outstanding_request_bytes", "104857600");
+        PubSubConfig config = BenchmarkSupport.config(overrides);
+
+        server = new FakePublisherServer(1, 0, 0);
+        channels = new ManagedChannel[stripes];
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            channels[stripe] = ManagedChannelBuilder.forTarget(server.getTarget()).usePlaintext().build();
+        }
+        publishers = new PublisherPool(config.getProjectId(), config.getTopicId(), config.createBatchingSettings(),
+                stripes, null, (topicName, batchingSettings, stripe) -> Publisher.newBuilder(topicName)
+                .setBatchingSettings(batchingSettings)
+                .setChannelProvider(FixedTransportChannelProvider.create(GrpcTransportChannel.create(channels[stripe])))
+                .setCredentialsProvider(NoCredentialsProvider.create())
+                .build());
+
+        EventMessageSerializer serializer = new EventMessageSerializer();
+        EventGenerator generator = new EventGenerator(42, 100, 100);
+        messages = new PubsubMessage[MESSAGE_COUNT];
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Event event = generator.userEvent();
+            messages[i] = PubsubMessage.newBuilder()
+                    .putAllAttributes(PubSubConfig.getMessageAttributes(event,
+                            config.getUserEventMatcher().match(event).orElseThrow(IllegalStateException::new)))
+                    .setData(serializer.serialize(event))
+                    .build();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        publishers.close();
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public ApiFuture<String> publish() throws IOException {
+        final PubsubMessage message = messages[ThreadLocalRandom.current().nextInt(MESSAGE_COUNT)];
+        return publishers.get(null, message).publish(message);
+    }
+}
@@ -0,0 +1,400 @@
+package com.softrizon.keycloak.providers.events.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.diagnostics.DiagnosticsBuffer;
+import com.softrizon.keycloak.providers.events.pubsub.dispatch.EventDispatcher;
+import com.softrizon.keycloak.providers.events.pubsub.enrichment.EventEnricher;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventCoalescer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventDeduplicator;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventEnvelope;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventProjection;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventRateLimiter;
+import com.softrizon.keycloak.providers.events.pubsub.events.OrderingKeys;
+import com.softrizon.keycloak.providers.events.pubsub.metrics.PubSubMetrics;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.MessagePublisher;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.RoutedMessage;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.models.KeycloakSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.createEventName;
+
+/**
+ * Turns the events of committed transactions into messages and publishes them.
+ * <p>
+ * A single handler is built by the factory and shared by the listener providers of all sessions, so a session only
+ * pays for its own events. User events are matched once, when they are emitted, and carry their pattern to the
+ * commit.
+ */
+public class PubSubEventHandler {
+
+    private static final Logger logger = Logger.getLogger(PubSubEventHandler.class);
+
+    private final PubSubConfig config;
+    private final MessagePublisher publisher;
+    private final EventMessageSerializer serializer;
+    private final EventDispatcher dispatcher;
+    private final EventEnricher enricher;
+    private final EventDeduplicator deduplicator;
+    private final EventCoalescer coalescer;
+    private final EventRateLimiter rateLimiter;
+    private final PubSubMetrics metrics;
+    private final DiagnosticsBuffer diagnostics;
+
+    public PubSubEventHandler(MessagePublisher publisher, PubSubConfig config, EventMessageSerializer serializer,
+                              EventDispatcher dispatcher, EventEnricher enricher, EventDeduplicator deduplicator,
+                              EventCoalescer coalescer, EventRateLimiter rateLimiter, PubSubMetrics metrics,
+                              DiagnosticsBuffer diagnostics) {
+        Objects.requireNonNull(publisher, String.format("%s: a valid message publisher is required.", PLUGIN_NAME));
+        Objects.requireNonNull(config, String.format("%s: a valid config object is required.", PLUGIN_NAME));
+        Objects.requireNonNull(serializer, String.format("%s: a valid serializer is required.", PLUGIN_NAME));
+
+        this.publisher = publisher;
+        this.config = config;
+        this.serializer = serializer;
+        this.dispatcher = dispatcher; // Optional, only set when asynchronous workers are configured
+        this.enricher = enricher; // Optional, only set when user or client fields are configured
+        this.deduplicator = deduplicator; // Optional, events delivered twice are published twice without it
+        this.coalescer = coalescer; // Optional, events are never coalesced without it
+        this.rateLimiter = rateLimiter; // Optional, events are never shed without it
+        this.metrics = metrics; // Optional, only set when Micrometer is available
+        this.diagnostics = diagnostics; // Optional, messages are neither counted nor recorded without it
+    }
+
+    /**
+     * Returns the first pattern {@code event} matches, or {@code null} when it matches none.
+     */
+    public EventPattern match(Event event) {
+        return config.getUserEventMatcher().match(event).orElse(null);
+    }
+
+    /**
+     * Returns {@code event} with the configured user and client fields when its {@code pattern} publishes them,
+     * called while its session is open.
+     */
+    public Event enrich(KeycloakSession session, Event event, EventPattern pattern) {
+        if (enricher == null || pattern == null || pattern.projection != null
+                && !pattern.projection.includes(EventProjection.Field.USER)
+                && !pattern.projection.includes(EventProjection.Field.CLIENT)) {
+            return event;
+        }
+
+        return enricher.enrich(session, event);
+    }
+
+    /**
+     * Publishes the events of a committed transaction, as envelopes when they are enabled and one by one otherwise.
+     */
+    public void publish(CommittedEvents committedEvents) {
+        if (config.isEnvelope()) {
+            publishTransaction(committedEvents);
+            return;
+        }
+
+        // In the order Keycloak hands them to listeners: admin events first
+        for (int i = 0; i < committedEvents.adminEvents.size(); i++) {
+            publishAdminEvent(committedEvents.adminEvents.get(i), committedEvents.includeRepresentations.get(i));
+        }
+        for (int i = 0; i < committedEvents.events.size(); i++) {
+            publishEvent(committedEvents.events.get(i), committedEvents.patterns.get(i));
+        }
+    }
+
+    private void publishAdminEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+        // Committed changes to users and clients make their cached enrichment fields stale, whatever the patterns
+        if (enricher != null) enricher.invalidate(adminEvent);
+
+        final long committedAt = System.nanoTime();
+        final String orderingKey = OrderingKeys.derive(config.getAdminEventOrderingKey(), adminEvent);
+        if (dispatcher == null) {
+            publisher.publish(createMessage(adminEvent, includeRepresentation, orderingKey), committedAt);
+            return;
+        }
+
+        // Admin events are audit relevant, they are never dropped when the queue overflows
+        dispatcher.dispatch(EventDispatcher.Priority.HIGH, orderingKey,
+                () -> publisher.publish(createMessage(adminEvent, includeRepresentation, orderingKey), committedAt),
+                () -> publisher.spill(createMessage(adminEvent, includeRepresentation, orderingKey), committedAt));
+    }
+
+    private void publishEvent(Event event, EventPattern pattern) {
+        final long committedAt = System.nanoTime();
+        final String orderingKey = OrderingKeys.derive(config.getUserEventOrderingKey(), event);
+        if (dispatcher == null) {
+            publisher.publish(createMessage(event, pattern, orderingKey), committedAt);
+            return;
+        }
+
+        // Events sharing an ordering key go through the same worker, so they reach the publisher in order
+        dispatcher.dispatch(EventDispatcher.Priority.LOW, orderingKey,
+                () -> publisher.publish(createMessage(event, pattern, orderingKey), committedAt),
+                () -> publisher.spill(createMessage(event, pattern, orderingKey), committedAt));
+    }
+
+    /**
+     * Publishes the matched events of a committed transaction as envelopes: one message per topic, format and
+     * ordering key, split when it would exceed the maximum envelope size.
+     */
+    private void publishTransaction(CommittedEvents committedEvents) {
+        // Committed changes to users and clients make their cached enrichment fields stale, whatever the patterns
+        if (enricher != null) committedEvents.adminEvents.forEach(enricher::invalidate);
+
+        final long committedAt = System.nanoTime();
+        for (Map.Entry<String, CommittedEvents> entry : byOrderingKey(committedEvents).entrySet()) {
+            final String orderingKey = entry.getKey();
+            final CommittedEvents events = entry.getValue();
+            if (dispatcher == null) {
+                createEnvelopes(events, orderingKey).forEach(message -> publisher.publish(message, committedAt));
+                continue;
+            }
+
+            // Envelopes carrying admin events are never dropped when the queue overflows
+            final EventDispatcher.Priority priority = events.adminEvents.isEmpty()
+                    ? EventDispatcher.Priority.LOW : EventDispatcher.Priority.HIGH;
+            dispatcher.dispatch(priority, orderingKey,
+                    () -> createEnvelopes(events, orderingKey).forEach(
+                            message -> publisher.publish(message, committedAt)),
+                    () -> createEnvelopes(events, orderingKey).forEach(
+                            message -> publisher.spill(message, committedAt)));
+        }
+    }
+
+    private Map<String, CommittedEvents> byOrderingKey(CommittedEvents committedEvents) {
+        // Without ordering keys, all events of the transaction can share envelopes
+        if (!config.isMessageOrdering()) return Collections.singletonMap(null, committedEvents);
+
+        // Otherwise each key gets its own envelopes, so they keep the order of their key
+        final Map<String, CommittedEvents> byOrderingKey = new LinkedHashMap<>();
+        for (int i = 0; i < committedEvents.adminEvents.size(); i++) {
+            final AdminEvent adminEvent = committedEvents.adminEvents.get(i);
+            byOrderingKey.computeIfAbsent(OrderingKeys.derive(config.getAdminEventOrderingKey(), adminEvent),
+                    key -> new CommittedEvents()).addAdminEvent(adminEvent,
+                    committedEvents.includeRepresentations.get(i));
+        }
+        for (int i = 0; i < committedEvents.events.size(); i++) {
+            final Event event = committedEvents.events.get(i);
+            byOrderingKey.computeIfAbsent(OrderingKeys.derive(config.getUserEventOrderingKey(), event),
+                    key -> new CommittedEvents()).addEvent(event, committedEvents.patterns.get(i));
+        }
+
+        return byOrderingKey;
+    }
+
+    private RoutedMessage createMessage(AdminEvent adminEvent, boolean includeRepresentation,
+                                        String orderingKey) {
+        final EventPattern pattern = accept(adminEvent);
+        if (pattern == null) return null;
+
+        // Processing the event
+        try {
+            ByteString data = serializer.serialize(adminEvent, pattern.format, includeRepresentation,
+                    pattern.projection);
+            Map<String, String> attributes = PubSubConfig.getMessageAttributes(adminEvent, pattern);
+
+            return new RoutedMessage(pattern.topic, publisher.createMessage(data, attributes, orderingKey), null,
+                    adminEvent);
+        } catch (IOException | RuntimeException exception) {
+            logger.warnf(exception, "%s: failed to serialize admin event id '%s'.",
+                    PLUGIN_NAME, adminEvent.getId());
+            return null;
+        }
+    }
+
+    private EventPattern accept(AdminEvent adminEvent) {
+        // Ignore events that are not registered
+        final Optional<EventPattern> optionalEvent = config.getAdminEventMatcher().match(adminEvent);
+        if (metrics != null) {
+            metrics.recordEvent(EventPattern.Who.ADMIN, adminEvent.getError(), optionalEvent.orElse(null));
+        }
+        if (!optionalEvent.isPresent()) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.IGNORED)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.IGNORED, adminEvent.getRealmId(), adminEvent.getId(),
+                        createEventName(adminEvent), null, null, 0, null);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debugf("%s: ignored admin event '%s'.", PLUGIN_NAME, createEventName(adminEvent));
+            }
+            return null;
+        }
+
+        // Keycloak can deliver an event more than once, only its first delivery is published
+        if (deduplicator != null && !deduplicator.firstSeen(adminEvent.getId())) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.DUPLICATE)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.DUPLICATE, adminEvent.getRealmId(), adminEvent.getId(),
+                        createEventName(adminEvent), optionalEvent.get().topic, null, 0, null);
+            }
+            return null;
+        }
+
+        return optionalEvent.get();
+    }
+
+    private RoutedMessage createMessage(Event event, EventPattern matchedPattern, String orderingKey) {
+        final EventPattern pattern = accept(event, matchedPattern);
+        if (pattern == null) return null;
+
+        // Processing the event
+        try {
+            ByteString data = serializer.serialize(event, pattern.format, pattern.projection);
+            Map<String, String> attributes = PubSubConfig.getMessageAttributes(event, pattern);
+
+            return new RoutedMessage(pattern.topic, publisher.createMessage(data, attributes, orderingKey), event,
+                    null);
+        } catch (IOException | RuntimeException exception) {
+            logger.warnf(exception, "%s: failed to serialize client event id '%s'.",
+                    PLUGIN_NAME, event.getId());
+            return null;
+        }
+    }
+
+    private EventPattern accept(Event event, EventPattern pattern) {
+        // Ignore events that are not registered, they were matched when emitted
+        if (metrics != null) metrics.recordEvent(EventPattern.Who.USER, event.getError(), pattern);
+        if (pattern == null) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.IGNORED)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.IGNORED, event.getRealmId(), event.getId(),
+                        createEventName(event), null, null, 0, null);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debugf("%s: ignored user event '%s'.", PLUGIN_NAME, createEventName(event));
+            }
+            return null;
+        }
+
+        // Keycloak can deliver an event more than once, only its first delivery is published
+        if (deduplicator != null && !deduplicator.firstSeen(event.getId())) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.DUPLICATE)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.DUPLICATE, event.getRealmId(), event.getId(),
+                        createEventName(event), pattern.topic, null, 0, null);
+            }
+            return null;
+        }
+
+        // Identical events within the window of the pattern are published as one summary when it closes
+        if (coalescer != null && coalescer.absorb(pattern, event)) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.COALESCED)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.COALESCED, event.getRealmId(), event.getId(),
+                        createEventName(event), pattern.topic, null, 0, null);
+            }
+            return null;
+        }
+
+        // Events above the rate limit of the pattern are only counted, and reported in a periodic summary
+        if (rateLimiter != null && !rateLimiter.tryAcquire(pattern, event)) {
+            if (diagnostics != null && diagnostics.count(DiagnosticsBuffer.Outcome.SHED)) {
+                diagnostics.record(DiagnosticsBuffer.Outcome.SHED, event.getRealmId(), event.getId(),
+                        createEventName(event), pattern.topic, null, 0, null);
+            }
+            return null;
+        }
+
+        return pattern;
+    }
+
+    private List<RoutedMessage> createEnvelopes(CommittedEvents committedEvents, String orderingKey) {
+        // Events go to the last envelope of their topic and format, a new one is started once it is full
+        final List<EventEnvelope> envelopes = new ArrayList<>(1);
+        for (int i = 0; i < committedEvents.adminEvents.size(); i++) {
+            final AdminEvent adminEvent = committedEvents.adminEvents.get(i);
+            final EventPattern pattern = accept(adminEvent);
+            if (pattern == null) continue;
+
+            try {
+                final ByteString data = serializer.serialize(adminEvent, pattern.format,
+                        committedEvents.includeRepresentations.get(i), pattern.projection);
+                final EventEnvelope envelope = findEnvelope(envelopes, pattern);
+                if (envelope == null || !envelope.add(pattern, adminEvent, data)) {
+                    newEnvelope(envelopes, pattern).add(pattern, adminEvent, data);
+                }
+            } catch (IOException | RuntimeException exception) {
+                logger.warnf(exception, "%s: failed to serialize admin event id '%s'.",
+                        PLUGIN_NAME, adminEvent.getId());
+            }
+        }
+        for (int i = 0; i < committedEvents.events.size(); i++) {
+            final Event event = committedEvents.events.get(i);
+            final EventPattern pattern = accept(event, committedEvents.patterns.get(i));
+            if (pattern == null) continue;
+
+            try {
+                final ByteString data = serializer.serialize(event, pattern.format, pattern.projection);
+                final EventEnvelope envelope = findEnvelope(envelopes, pattern);
+                if (envelope == null || !envelope.add(pattern, event, data)) {
+                    newEnvelope(envelopes, pattern).add(pattern, event, data);
+                }
+            } catch (IOException | RuntimeException exception) {
+                logger.warnf(exception, "%s: failed to serialize client event id '%s'.",
+                        PLUGIN_NAME, event.getId());
+            }
+        }
+
+        final List<RoutedMessage> messages = new ArrayList<>(envelopes.size());
+        for (EventEnvelope envelope : envelopes) {
+            try {
+                final ByteString data = serializer.serialize(envelope);
+                final Map<String, String> attributes = PubSubConfig.getMessageAttributes(envelope);
+                messages.add(new RoutedMessage(envelope.getTopic(),
+                        publisher.createMessage(data, attributes, orderingKey), null, null));
+            } catch (IOException | RuntimeException exception) {
+                logger.warnf(exception, "%s: failed to serialize the envelope of event id '%s'.",
+                        PLUGIN_NAME, envelope.getFirstEventId());
+            }
+        }
+
+        return messages;
+    }
+
+    private static EventEnvelope findEnvelope(List<EventEnvelope> envelopes, EventPattern pattern) {
+        for (int i = envelopes.size() - 1; i >= 0; i--) {
+            if (envelopes.get(i).accepts(pattern)) return envelopes.get(i);
+        }
+
+        return null;
+    }
+
+    private EventEnvelope newEnvelope(List<EventEnvelope> envelopes, EventPattern pattern) {
+        final EventEnvelope envelope = new EventEnvelope(pattern.topic, pattern.format, config.getEnvelopeMaxBytes());
+        envelopes.add(envelope);
+        return envelope;
+    }
+
+    /**
+     * The events of a committed transaction, in the order Keycloak hands them to listeners: admin events first. User
+     * events come with the pattern they matched when emitted.
+     */
+    public static final class CommittedEvents {
+        private final List<AdminEvent> adminEvents = new ArrayList<>();
+        private final BitSet includeRepresentations = new BitSet();
+        private final List<Event> events = new ArrayList<>();
+        private final List<EventPattern> patterns = new ArrayList<>(); // Null for events that matched none
+
+        public void addAdminEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+            includeRepresentations.set(adminEvents.size(), includeRepresentation);
+            adminEvents.add(adminEvent);
+        }
+
+        public void addEvent(Event event, EventPattern pattern) {
+            events.add(event);
+            patterns.add(pattern);
+        }
+
+        public boolean isEmpty() {
+            return adminEvents.isEmpty() && events.isEmpty();
+        }
+    }
+}
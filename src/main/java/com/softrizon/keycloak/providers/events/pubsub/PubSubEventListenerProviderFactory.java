@@ -1,20 +1,51 @@
 package com.softrizon.keycloak.providers.events.pubsub;
 
+import com.google.api.gax.batching.BatchingSettings;
 import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.PublisherInterface;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.TopicName;
+import com.softrizon.keycloak.providers.events.pubsub.compression.MessageCompressor;
+import com.softrizon.keycloak.providers.events.pubsub.config.EventPatternsFileWatcher;
 import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.diagnostics.DiagnosticsBuffer;
+import com.softrizon.keycloak.providers.events.pubsub.dispatch.EventDispatcher;
+import com.softrizon.keycloak.providers.events.pubsub.enrichment.EventEnricher;
+import com.softrizon.keycloak.providers.events.pubsub.events.CoalescedEvents;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventCoalescer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventDeduplicator;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventRateLimiter;
+import com.softrizon.keycloak.providers.events.pubsub.events.ShedEvents;
+import com.softrizon.keycloak.providers.events.pubsub.metrics.PubSubMetrics;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.AdaptiveBatchingController;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.MessagePublisher;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherChannels;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherPool;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherWarmUp;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.RoutedMessage;
+import com.softrizon.keycloak.providers.events.pubsub.spool.MessageSpool;
+import com.softrizon.keycloak.providers.events.pubsub.spool.SpoolReplayer;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.provider.ProviderFactory;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
@@ -23,32 +54,60 @@ public class PubSubEventListenerProviderFactory implements EventListenerProvider
 
     private static final Logger logger = Logger.getLogger(PubSubEventListenerProviderFactory.class);
 
+    // Publishers replaced by adaptive batching get this long to finish publishing before they are shut down
+    private static final long RETIRED_PUBLISHER_GRACE_SECONDS = 30;
+
     private GoogleCredentials credentials;
     private PubSubConfig config;
-    private Publisher publisher;
+    private PublisherPool publishers;
+    private MessagePublisher messagePublisher;
+    private volatile PubSubEventHandler handler;
+    private EventMessageSerializer serializer;
+    private MessageCompressor compressor;
+    private AdaptiveBatchingController batchingController;
+    private MessageSpool spool;
+    private SpoolReplayer spoolReplayer;
+    private EventDispatcher dispatcher;
+    private EventEnricher enricher;
+    private EventDeduplicator deduplicator;
+    private EventCoalescer coalescer;
+    private EventRateLimiter rateLimiter;
+    private PubSubMetrics metrics;
+    private DiagnosticsBuffer diagnostics;
+    private EventPatternsFileWatcher patternsWatcher;
+    private PublisherChannels channels;
+    private PublisherWarmUp warmUp;
+    private final Set<PublisherInterface> retiredPublishers = ConcurrentHashMap.newKeySet();
 
     @Override
-    public synchronized EventListenerProvider create(KeycloakSession keycloakSession) {
-        try {
-            if (publisher == null) {
-                publisher = Publisher.newBuilder(TopicName.of(config.getProjectId(), config.getTopicId()))
-                        .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
-                        .build();
-            }
-        } catch (IOException exception) {
-            logger.warnf(exception, "%s: failed to create Pub/Sub publisher.", PLUGIN_NAME);
-            return null;
-        }
-
-        return new PubSubEventListenerProvider(publisher, keycloakSession, config);
+    public EventListenerProvider create(KeycloakSession keycloakSession) {
+        // The handler is built by postInit, the provider only allocates its transaction on the first event
+        return new PubSubEventListenerProvider(handler, keycloakSession);
     }
 
     @Override
     public void init(Config.Scope scope) {
         try {
             config = PubSubConfig.create(scope);
-            credentials = GoogleCredentials.fromStream(Files.newInputStream(Paths.get(
-                    config.getServiceAccountCredentialsFilePath())));
+            if (config.getEventPatternsFile() != null) watchEventPatternsFile();
+            serializer = new EventMessageSerializer(config.getRepresentationMode(),
+                    config.getRepresentationMaxBytes(), config.getRepresentationOverflow());
+            if (config.getCompressionCodec() != MessageCompressor.Codec.NONE) {
+                compressor = new MessageCompressor(config.getCompressionCodec(), config.getCompressionThresholdBytes(),
+                        config.getCompressionLevel());
+            }
+            if (config.isMetricsEnabled() && PubSubMetrics.isAvailable()) metrics = new PubSubMetrics();
+            diagnostics = new DiagnosticsBuffer(config.getDiagnosticsBufferSize(),
+                    config.getDiagnosticsSampleInterval(), config.getDiagnosticsLogIntervalSeconds());
+            if (config.getSpoolDirectory() != null) {
+                spool = new MessageSpool(Paths.get(config.getSpoolDirectory()), config.getSpoolMaxBytes(),
+                        config.getSpoolSegmentBytes(), config.getSpoolFsyncPolicy());
+                if (metrics != null) metrics.registerSpool(spool);
+            }
+            if (!config.isEmulator()) {
+                credentials = GoogleCredentials.fromStream(Files.newInputStream(Paths.get(
+                        config.getServiceAccountCredentialsFilePath())));
+            }
         } catch (IOException exception) {
             logger.errorf(exception, "%s: service account file for pub sub could not be found.", PLUGIN_NAME);
         }
@@ -56,18 +115,74 @@ public class PubSubEventListenerProviderFactory implements EventListenerProvider
 
     @Override
     public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
-        // Intentionally left blank
+        channels = createChannels();
+        publishers = new PublisherPool(config.getProjectId(), config.getTopicId(), config.createBatchingSettings(),
+                config.getPublisherStripes(), config.getPublisherStripeKey(), this::createPublisher);
+        if (config.isAdaptiveBatching() && config.isMessageOrdering()) {
+            // A rebuild would let the messages of a key pending on the old publisher be sent after later ones
+            logger.warnf("%s: adaptive batching is disabled with message ordering, the configured batching "
+                    + "thresholds are used.", PLUGIN_NAME);
+        } else if (config.isAdaptiveBatching()) {
+            batchingController = new AdaptiveBatchingController(config, this::replacePublishers);
+        }
+        messagePublisher = new MessagePublisher(publishers, config, compressor, batchingController, spool, metrics,
+                diagnostics);
+        if (config.isEnrichment()) {
+            enricher = new EventEnricher(config.getEnrichUserFields(), config.getEnrichClientFields(),
+                    config.getEnrichCacheMaxEntries(), config.getEnrichCacheTtlSeconds());
+        }
+        if (config.getDedupMaxEntries() > 0) {
+            deduplicator = new EventDeduplicator(config.getDedupMaxEntries(), config.getDedupTtlSeconds());
+            if (metrics != null) metrics.registerDeduplicator(deduplicator);
+        }
+        coalescer = new EventCoalescer(config.getCoalesceMaxKeys(), this::publishCoalesced);
+        rateLimiter = new EventRateLimiter(config.getRateLimitExemptEventTypes(),
+                config.getRateLimitSummaryIntervalSeconds(), this::publishShed);
+        if (metrics != null) metrics.registerRateLimiter(rateLimiter);
+        if (config.getAsyncWorkerCount() > 0) {
+            dispatcher = new EventDispatcher(config.getAsyncQueueCapacity(), config.getAsyncWorkerCount(),
+                    config.getAsyncOverflowPolicy(), config.getAsyncBlockTimeoutMs());
+            if (metrics != null) metrics.registerDispatcher(dispatcher);
+        }
+        if (spool != null) {
+            spoolReplayer = new SpoolReplayer(spool, publishers, config.getSpoolReplayRate());
+        }
+        handler = new PubSubEventHandler(messagePublisher, config, serializer, dispatcher, enricher, deduplicator,
+                coalescer, rateLimiter, metrics, diagnostics);
+
+        // Fetch a token and build the default topic publishers in the background, the other topics get theirs on
+        // first use
+        warmUp = new PublisherWarmUp(() -> {
+            if (credentials != null) credentials.refreshIfExpired();
+            publishers.warmUp(null);
+        });
     }
 
     @Override
     public void close() {
-        try {
-            if (publisher != null) {
-                publisher.shutdown();
-                publisher.awaitTermination(1, TimeUnit.MINUTES);
-            }
-        } catch (InterruptedException exception) {
-            logger.debugf(exception, "%s: awaiting pub/sub publisher termination interrupted.", PLUGIN_NAME);
+        if (warmUp != null) warmUp.close();
+        if (patternsWatcher != null) patternsWatcher.close();
+
+        // Drain the queued events first, they still need the publisher, and the summaries of open windows after them
+        if (dispatcher != null) dispatcher.close();
+        if (coalescer != null) coalescer.close();
+        if (rateLimiter != null) rateLimiter.close();
+        if (spoolReplayer != null) spoolReplayer.close();
+        if (batchingController != null) batchingController.close();
+
+        if (publishers != null) publishers.close();
+        for (PublisherInterface retiredPublisher : retiredPublishers) {
+            if (retiredPublishers.remove(retiredPublisher)) PublisherPool.shutdown(retiredPublisher);
+        }
+
+        if (channels != null) channels.close();
+        if (compressor != null) compressor.close();
+        if (diagnostics != null) diagnostics.close();
+
+        // Whatever is still in flight after the publishers gave up is kept for the next start
+        if (spool != null) {
+            spool.spoolOutstanding();
+            spool.close();
         }
     }
 
@@ -75,4 +190,115 @@ public class PubSubEventListenerProviderFactory implements EventListenerProvider
     public String getId() {
         return PLUGIN_NAME;
     }
+
+    /**
+     * Returns the configuration, whose event patterns the patterns admin resource reloads, {@code null} before init.
+     */
+    public PubSubConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the recent messages buffer shown by the diagnostics admin resource, {@code null} before init.
+     */
+    public DiagnosticsBuffer getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the deployed listener factory, used by the admin resources to reach its state, or {@code null}.
+     */
+    public static PubSubEventListenerProviderFactory lookup(KeycloakSessionFactory sessionFactory) {
+        final ProviderFactory<EventListenerProvider> factory = sessionFactory.getProviderFactory(
+                EventListenerProvider.class, PLUGIN_NAME);
+
+        return factory instanceof PubSubEventListenerProviderFactory ? (PubSubEventListenerProviderFactory) factory
+                : null;
+    }
+
+    private void watchEventPatternsFile() {
+        try {
+            patternsWatcher = new EventPatternsFileWatcher(config, Paths.get(config.getEventPatternsFile()));
+        } catch (IOException exception) {
+            logger.errorf(exception, "%s: failed to watch event patterns file '%s', patterns will not be reloaded.",
+                    PLUGIN_NAME, config.getEventPatternsFile());
+        }
+    }
+
+    private PublisherChannels createChannels() {
+        // The publishers of a stripe share one channel, connected right away
+        if (config.isEmulator()) {
+            return PublisherChannels.forEmulator(config.getEmulatorHost(), config.getPublisherStripes());
+        }
+
+        try {
+            return PublisherChannels.forEndpoint(config.getEndpoint(), config.getPublisherStripes(),
+                    config.getExecutorThreadCount(), credentials != null ? credentials.getQuotaProjectId() : null);
+        } catch (IOException | RuntimeException exception) {
+            logger.warnf(exception, "%s: failed to create shared publisher channels, every publisher will create its "
+                    + "own.", PLUGIN_NAME);
+            return null;
+        }
+    }
+
+    private Publisher createPublisher(TopicName topicName, BatchingSettings batchingSettings, int stripe)
+            throws IOException {
+        Publisher.Builder builder = Publisher.newBuilder(topicName)
+                .setBatchingSettings(batchingSettings)
+                .setEnableMessageOrdering(config.isMessageOrdering());
+        if (channels != null) builder.setChannelProvider(FixedTransportChannelProvider.create(channels.get(stripe)));
+        if (config.isEmulator()) {
+            builder.setCredentialsProvider(NoCredentialsProvider.create());
+        } else {
+            builder.setCredentialsProvider(FixedCredentialsProvider.create(credentials));
+            if (channels == null && config.getEndpoint() != null) builder.setEndpoint(config.getEndpoint());
+        }
+        if (config.getExecutorThreadCount() != null) {
+            builder.setExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+                    .setExecutorThreadCount(config.getExecutorThreadCount())
+                    .build());
+        }
+
+        Publisher newPublisher = builder.build();
+        if (metrics != null) metrics.recordPublisherCreated();
+
+        return newPublisher;
+    }
+
+    private void publishCoalesced(CoalescedEvents events) {
+        try {
+            final ByteString data = serializer.serialize(events);
+            final PubsubMessage message = messagePublisher.createMessage(data,
+                    PubSubConfig.getMessageAttributes(events), null);
+            messagePublisher.publish(new RoutedMessage(events.getPattern().topic, message,
+                    events.getRepresentative(), null), System.nanoTime());
+        } catch (IOException exception) {
+            logger.warnf(exception, "%s: failed to serialize %d coalesced event(s).", PLUGIN_NAME, events.getCount());
+        }
+    }
+
+    private void publishShed(ShedEvents events) {
+        try {
+            final ByteString data = serializer.serialize(events);
+            final PubsubMessage message = messagePublisher.createMessage(data,
+                    PubSubConfig.getMessageAttributes(events), null);
+            messagePublisher.publish(new RoutedMessage(events.getPattern().topic, message, null, null),
+                    System.nanoTime());
+        } catch (IOException exception) {
+            logger.warnf(exception, "%s: failed to serialize the summary of %d shed event(s).", PLUGIN_NAME,
+                    events.getCount());
+        }
+    }
+
+    private void replacePublishers(BatchingSettings batchingSettings) {
+        final List<PublisherInterface> replaced = publishers.rebuild(batchingSettings);
+
+        // Publishes already handed to the replaced publishers get a short while to complete
+        retiredPublishers.addAll(replaced);
+        batchingController.schedule(() -> {
+            for (PublisherInterface retiredPublisher : replaced) {
+                if (retiredPublishers.remove(retiredPublisher)) PublisherPool.shutdown(retiredPublisher);
+            }
+        }, RETIRED_PUBLISHER_GRACE_SECONDS, TimeUnit.SECONDS);
+    }
 }
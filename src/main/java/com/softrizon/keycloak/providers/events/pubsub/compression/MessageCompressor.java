@@ -0,0 +1,169 @@
+package com.softrizon.keycloak.providers.events.pubsub.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Compresses message bodies at or above a size threshold, typically admin events carrying large representations.
+ * <p>
+ * Compressed bodies are published with a {@value #CONTENT_ENCODING_ATTRIBUTE} attribute naming the codec, bodies
+ * below the threshold or that would not shrink are published as they are. Gzip uses JDK deflaters from a pool of one
+ * per processor at most, whose native memory is released on {@link #close()}, and zstd requires {@code zstd-jni} on the
+ * class path, see {@link #isZstdAvailable()}. A single instance is shared by all sessions and is thread safe.
+ */
+public class MessageCompressor implements AutoCloseable {
+
+    public static final String CONTENT_ENCODING_ATTRIBUTE = "contentEncoding";
+    public static final int DEFAULT_LEVEL = -1;
+
+    static final int DEFAULT_ZSTD_LEVEL = 3;
+    static final int CHUNK_SIZE = 8192;
+    static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Codec codec;
+    private final int thresholdBytes;
+    private final int level;
+    private final BlockingQueue<Deflater> deflaters;
+    private final ThreadLocal<byte[]> chunks = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private volatile boolean closed;
+
+    public MessageCompressor(Codec codec, int thresholdBytes, int level) {
+        Objects.requireNonNull(codec, String.format("%s: a compression codec is required.", PLUGIN_NAME));
+        if (codec == Codec.ZSTD && !isZstdAvailable()) {
+            throw new IllegalArgumentException(String.format("%s: zstd compression requires zstd-jni on the class path.",
+                    PLUGIN_NAME));
+        }
+
+        this.codec = codec;
+        this.thresholdBytes = thresholdBytes;
+        if (codec == Codec.GZIP) this.level = level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION : level;
+        else this.level = level == DEFAULT_LEVEL ? DEFAULT_ZSTD_LEVEL : level;
+        deflaters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static boolean isZstdAvailable() {
+        try {
+            Class.forName("com.github.luben.zstd.Zstd", false, MessageCompressor.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError exception) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the lowest level {@code codec} accepts, zstd requires {@code zstd-jni} on the class path.
+     */
+    public static int getMinLevel(Codec codec) {
+        return codec == Codec.ZSTD ? ZstdCodec.minLevel() : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * Returns the highest level {@code codec} accepts, zstd requires {@code zstd-jni} on the class path.
+     */
+    public static int getMaxLevel(Codec codec) {
+        return codec == Codec.ZSTD ? ZstdCodec.maxLevel() : Deflater.BEST_COMPRESSION;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public String getContentEncoding() {
+        return codec.contentEncoding;
+    }
+
+    /**
+     * Returns the compressed body, or {@code null} when {@code data} is below the threshold or does not shrink.
+     */
+    public ByteString compress(ByteString data) {
+        if (codec == Codec.NONE || data.size() < thresholdBytes) return null;
+
+        final byte[] input = data.toByteArray();
+        final ByteString compressed = codec == Codec.GZIP ? gzip(input) : ZstdCodec.compress(input, level);
+
+        return compressed.size() < input.length ? compressed : null;
+    }
+
+    /**
+     * Ends the pooled deflaters. Bodies compressed afterwards use a deflater of their own.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Deflater deflater = deflaters.poll(); deflater != null; deflater = deflaters.poll()) {
+            deflater.end();
+        }
+    }
+
+    private ByteString gzip(byte[] input) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        final byte[] chunk = chunks.get();
+        final ByteString.Output output = ByteString.newOutput(Math.max(CHUNK_SIZE, input.length / 4));
+        try {
+            output.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            release(deflater);
+        }
+
+        // The gzip trailer holds the CRC-32 and the uncompressed size, both little endian
+        final CRC32 crc = new CRC32();
+        crc.update(input, 0, input.length);
+        writeIntLittleEndian(output, (int) crc.getValue());
+        writeIntLittleEndian(output, input.length);
+
+        return output.toByteString();
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        // Deflaters beyond the pool size, or returned while closing, release their native memory right away
+        if (!deflaters.offer(deflater) || closed && deflaters.remove(deflater)) deflater.end();
+    }
+
+    private static void writeIntLittleEndian(ByteString.Output output, int value) {
+        output.write(value & 0xff);
+        output.write((value >>> 8) & 0xff);
+        output.write((value >>> 16) & 0xff);
+        output.write((value >>> 24) & 0xff);
+    }
+
+    // Keeps zstd-jni from being loaded unless the codec is actually used
+    private static final class ZstdCodec {
+        private static ByteString compress(byte[] input, int level) {
+            return UnsafeByteOperations.unsafeWrap(Zstd.compress(input, level));
+        }
+
+        private static int minLevel() {
+            return Zstd.minCompressionLevel();
+        }
+
+        private static int maxLevel() {
+            return Zstd.maxCompressionLevel();
+        }
+    }
+
+    public enum Codec {
+        NONE(null), GZIP("gzip"), ZSTD("zstd");
+
+        private final String contentEncoding;
+
+        Codec(String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+    }
+}
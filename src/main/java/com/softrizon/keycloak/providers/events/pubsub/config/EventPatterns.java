@@ -0,0 +1,94 @@
+package com.softrizon.keycloak.providers.events.pubsub.config;
+
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternMatcher;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable, compiled set of user and admin event patterns.
+ * <p>
+ * A reload compiles a whole new instance and swaps it in, so events being matched meanwhile keep using the previous
+ * one and never see a half built set.
+ */
+public final class EventPatterns {
+
+    private final String userSource;
+    private final String adminSource;
+    private final Set<EventPattern> userEventTypes;
+    private final Set<EventPattern> adminEventTypes;
+    private final EventPatternMatcher userEventMatcher;
+    private final EventPatternMatcher adminEventMatcher;
+
+    private EventPatterns(String userSource, String adminSource, Set<EventPattern> userEventTypes,
+                          Set<EventPattern> adminEventTypes, EventPatternMatcher userEventMatcher,
+                          EventPatternMatcher adminEventMatcher) {
+        this.userSource = userSource;
+        this.adminSource = adminSource;
+        this.userEventTypes = userEventTypes;
+        this.adminEventTypes = adminEventTypes;
+        this.userEventMatcher = userEventMatcher;
+        this.adminEventMatcher = adminEventMatcher;
+    }
+
+    /**
+     * Parses and compiles comma separated user and admin patterns.
+     *
+     * @throws IllegalArgumentException when a pattern is invalid
+     */
+    static EventPatterns compile(EventPatternParser parser, String format, String userSource, String adminSource) {
+        final Set<EventPattern> userEventTypes = parse(parser, format, userSource);
+        final Set<EventPattern> adminEventTypes = parse(parser, format, adminSource);
+
+        return new EventPatterns(userSource, adminSource, userEventTypes, adminEventTypes,
+                parser.compile(EventPattern.Who.USER, userEventTypes),
+                parser.compile(EventPattern.Who.ADMIN, adminEventTypes));
+    }
+
+    public String getUserSource() {
+        return userSource;
+    }
+
+    public String getAdminSource() {
+        return adminSource;
+    }
+
+    public Set<EventPattern> getUserEventTypes() {
+        return userEventTypes;
+    }
+
+    public Set<EventPattern> getAdminEventTypes() {
+        return adminEventTypes;
+    }
+
+    public EventPatternMatcher getUserEventMatcher() {
+        return userEventMatcher;
+    }
+
+    public EventPatternMatcher getAdminEventMatcher() {
+        return adminEventMatcher;
+    }
+
+    private static Set<EventPattern> parse(EventPatternParser parser, String format, String source) {
+        final Set<EventPattern> patterns = new LinkedHashSet<>();
+        parseEventTypes(source).forEach(event -> patterns.add(parser.parse(format, event)));
+
+        return Collections.unmodifiableSet(patterns);
+    }
+
+    private static List<String> parseEventTypes(String events) {
+        if (events == null || events.trim().isEmpty()) return new ArrayList<>();
+
+        // Components are normalized by the parser, topic ids are case sensitive
+        return Arrays.stream(events.split(","))
+                .map(String::trim)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,116 @@
+package com.softrizon.keycloak.providers.events.pubsub.config;
+
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Reloads the event patterns whenever the patterns file changes.
+ * <p>
+ * The file is a properties file with the {@value #USER_EVENT_PATTERNS} and {@value #ADMIN_EVENT_PATTERNS} keys, a
+ * missing key keeps the current patterns of that kind. The whole directory is watched, so files replaced through a
+ * symbolic link, like a mounted Kubernetes config map, are picked up too. An invalid file is logged and ignored.
+ */
+public class EventPatternsFileWatcher implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(EventPatternsFileWatcher.class);
+
+    static final String USER_EVENT_PATTERNS = "keycloak_user_event_patterns";
+    static final String ADMIN_EVENT_PATTERNS = "keycloak_admin_event_patterns";
+
+    // Editors and config map updates touch the directory several times in a row, reload once they are done
+    static final long SETTLE_MILLIS = 200;
+
+    private final PubSubConfig config;
+    private final Path file;
+    private final WatchService watchService;
+    private final Thread thread;
+    private String loadedContent;
+
+    public EventPatternsFileWatcher(PubSubConfig config, Path file) throws IOException {
+        this.config = config;
+        this.file = file.toAbsolutePath();
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        // The file takes precedence over the configured patterns from the start
+        reload();
+
+        thread = new Thread(this::watch, PLUGIN_NAME + "-patterns-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (IOException exception) {
+            logger.debugf(exception, "%s: failed to close the event patterns watch service.", PLUGIN_NAME);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                Thread.sleep(SETTLE_MILLIS);
+                key.pollEvents();
+                reload();
+                if (!key.reset()) {
+                    logger.warnf("%s: event patterns directory of '%s' is no longer watched.", PLUGIN_NAME, file);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException exception) {
+            // Closed
+        }
+    }
+
+    private void reload() {
+        final String content;
+        try {
+            content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException exception) {
+            if (loadedContent == null) {
+                logger.warnf("%s: event patterns file '%s' not found, waiting for it.", PLUGIN_NAME, file);
+            }
+            return;
+        } catch (IOException exception) {
+            logger.errorf(exception, "%s: failed to read event patterns file '%s'.", PLUGIN_NAME, file);
+            return;
+        }
+
+        // Other files of the directory changed, or the file was saved without changes
+        if (content.equals(loadedContent)) return;
+        loadedContent = content;
+
+        try (Reader reader = new StringReader(content)) {
+            final Properties properties = new Properties();
+            properties.load(reader);
+            config.reloadEventPatterns(properties.getProperty(USER_EVENT_PATTERNS),
+                    properties.getProperty(ADMIN_EVENT_PATTERNS));
+        } catch (IOException | IllegalArgumentException exception) {
+            logger.errorf(exception, "%s: invalid event patterns file '%s', keeping the current patterns.",
+                    PLUGIN_NAME, file);
+        }
+    }
+}
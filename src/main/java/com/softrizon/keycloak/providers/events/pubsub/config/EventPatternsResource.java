@@ -0,0 +1,78 @@
+package com.softrizon.keycloak.providers.events.pubsub.config;
+
+import org.keycloak.Config;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Admin REST resource reading and reloading the event patterns, at {@code /admin/realms/{realm}/pubsub-patterns}.
+ * <p>
+ * Patterns apply to all realms and name the realms and topics of every tenant, so reading them requires the
+ * view-events role of the admin realm and reloading them its manage-events role. Reloads only affect the node serving
+ * the request and are not persisted, use the patterns file to change a whole cluster.
+ */
+public class EventPatternsResource {
+
+    static final String USER_EVENT_PATTERNS = "userEventPatterns";
+    static final String ADMIN_EVENT_PATTERNS = "adminEventPatterns";
+
+    private final PubSubConfig config;
+    private final AdminPermissionEvaluator auth;
+
+    public EventPatternsResource(PubSubConfig config, AdminPermissionEvaluator auth) {
+        this.config = config;
+        this.auth = auth;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, String> getEventPatterns() {
+        auth.realm().requireViewEvents();
+        requireAdminRealm("Event patterns can only be read by admins of the admin realm.");
+
+        return toRepresentation(config.getEventPatterns());
+    }
+
+    /**
+     * Replaces the patterns given as comma separated lists, in the syntax of the configuration, a missing list keeps
+     * the current patterns of that kind.
+     */
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, String> reloadEventPatterns(Map<String, String> patterns) {
+        auth.realm().requireManageEvents();
+        requireAdminRealm("Event patterns can only be reloaded by admins of the admin realm.");
+        if (patterns == null) throw new BadRequestException("Event patterns are required.");
+
+        try {
+            return toRepresentation(config.reloadEventPatterns(patterns.get(USER_EVENT_PATTERNS),
+                    patterns.get(ADMIN_EVENT_PATTERNS)));
+        } catch (IllegalArgumentException exception) {
+            throw new BadRequestException(exception.getMessage());
+        }
+    }
+
+    private void requireAdminRealm(String message) {
+        if (!Config.getAdminRealm().equals(auth.adminAuth().getRealm().getName())) {
+            throw new ForbiddenException(message);
+        }
+    }
+
+    private static Map<String, String> toRepresentation(EventPatterns patterns) {
+        final Map<String, String> representation = new LinkedHashMap<>();
+        representation.put(USER_EVENT_PATTERNS, patterns.getUserSource());
+        representation.put(ADMIN_EVENT_PATTERNS, patterns.getAdminSource());
+
+        return representation;
+    }
+}
@@ -0,0 +1,62 @@
+package com.softrizon.keycloak.providers.events.pubsub.config;
+
+import com.softrizon.keycloak.providers.events.pubsub.PubSubEventListenerProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import javax.ws.rs.NotFoundException;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Mounts the {@link EventPatternsResource} under the realm admin API, reloading the patterns of the event listener.
+ */
+public class EventPatternsResourceProviderFactory implements AdminRealmResourceProviderFactory,
+        AdminRealmResourceProvider {
+
+    public static final String ID = "pubsub-patterns";
+
+    private KeycloakSessionFactory sessionFactory;
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return this;
+    }
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                              AdminEventBuilder adminEvent) {
+        final PubSubEventListenerProviderFactory factory = PubSubEventListenerProviderFactory.lookup(sessionFactory);
+        if (factory == null || factory.getConfig() == null) {
+            throw new NotFoundException(String.format("%s: the event listener is not initialized.", PLUGIN_NAME));
+        }
+
+        return new EventPatternsResource(factory.getConfig(), auth);
+    }
+
+    @Override
+    public void init(Config.Scope scope) {
+        // Intentionally left blank
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        this.sessionFactory = keycloakSessionFactory;
+    }
+
+    @Override
+    public void close() {
+        // Intentionally left blank
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
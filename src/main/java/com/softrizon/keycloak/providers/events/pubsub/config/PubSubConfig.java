@@ -1,31 +1,105 @@
 package com.softrizon.keycloak.providers.events.pubsub.config;
 
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.api.gax.batching.FlowControlSettings;
+import com.google.api.gax.batching.FlowController;
+import com.softrizon.keycloak.providers.events.pubsub.compression.MessageCompressor;
+import com.softrizon.keycloak.providers.events.pubsub.dispatch.EventDispatcher;
+import com.softrizon.keycloak.providers.events.pubsub.events.CoalescedEvents;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventEnvelope;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventMessageSerializer;
 import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternMatcher;
 import com.softrizon.keycloak.providers.events.pubsub.events.EventPatternParser;
+import com.softrizon.keycloak.providers.events.pubsub.events.OrderingKeys;
+import com.softrizon.keycloak.providers.events.pubsub.events.ShedEvents;
+import com.softrizon.keycloak.providers.events.pubsub.spool.MessageSpool;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.events.Event;
 import org.keycloak.events.admin.AdminEvent;
 
+import org.threeten.bp.Duration;
+
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class PubSubConfig {
 
     public static final String PLUGIN_NAME = "event-listener-pubsub";
     private static final Logger logger = Logger.getLogger(PubSubConfig.class);
     private static final EventPatternParser parser = new EventPatternParser();
+    private static final int MAX_PUBLISHER_STRIPES = 64;
+    private static final long MAX_ENVELOPE_BYTES = 9L * 1024 * 1024; // Leaves room for attributes below 10 MB
 
     private String serviceAccountCredentialsFilePath;
+    private String endpoint;
+    private String emulatorHost;
     private String projectId;
     private String topicId;
-    private final Set<EventPattern> userEventTypes = new HashSet<>();
-    private final Set<EventPattern> adminEventTypes = new HashSet<>();
+    private String messageFormat;
+    private String eventPatternsFile;
+    private volatile EventPatterns eventPatterns;
+    private long batchElementCountThreshold;
+    private long batchRequestByteThreshold;
+    private long batchDelayThresholdMs;
+    private Long flowControlMaxOutstandingElementCount;
+    private Long flowControlMaxOutstandingRequestBytes;
+    private FlowController.LimitExceededBehavior flowControlLimitExceededBehavior;
+    private Integer executorThreadCount;
+    private int publisherStripes;
+    private String publisherStripeKey;
+    private boolean adaptiveBatching;
+    private long adaptiveBatchMaxElementCount;
+    private long adaptiveBatchMaxDelayMs;
+    private String spoolDirectory;
+    private long spoolMaxBytes;
+    private int spoolSegmentBytes;
+    private MessageSpool.FsyncPolicy spoolFsyncPolicy;
+    private int spoolReplayRate;
+    private int asyncWorkerCount;
+    private int asyncQueueCapacity;
+    private EventDispatcher.OverflowPolicy asyncOverflowPolicy;
+    private long asyncBlockTimeoutMs;
+    private boolean metricsEnabled;
+    private MessageCompressor.Codec compressionCodec;
+    private int compressionThresholdBytes;
+    private int compressionLevel;
+    private OrderingKeys.Source userEventOrderingKey;
+    private OrderingKeys.Source adminEventOrderingKey;
+    private EventMessageSerializer.RepresentationMode representationMode;
+    private int representationMaxBytes;
+    private EventMessageSerializer.RepresentationOverflow representationOverflow;
+    private int diagnosticsBufferSize;
+    private int diagnosticsSampleInterval;
+    private long diagnosticsLogIntervalSeconds;
+    private int coalesceMaxKeys;
+    private Set<String> rateLimitExemptEventTypes;
+    private long rateLimitSummaryIntervalSeconds;
+    private int dedupMaxEntries;
+    private long dedupTtlSeconds;
+    private List<String> enrichUserFields;
+    private List<String> enrichClientFields;
+    private int enrichCacheMaxEntries;
+    private long enrichCacheTtlSeconds;
+    private boolean envelope;
+    private int envelopeMaxBytes;
 
     public String getServiceAccountCredentialsFilePath() {
         return serviceAccountCredentialsFilePath;
     }
 
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public String getEmulatorHost() {
+        return emulatorHost;
+    }
+
+    public boolean isEmulator() {
+        return emulatorHost != null;
+    }
+
     public String getProjectId() {
         return projectId;
     }
@@ -35,11 +109,248 @@ public class PubSubConfig {
     }
 
     public Set<EventPattern> getUserEventTypes() {
-        return userEventTypes;
+        return eventPatterns.getUserEventTypes();
     }
 
     public Set<EventPattern> getAdminEventTypes() {
-        return adminEventTypes;
+        return eventPatterns.getAdminEventTypes();
+    }
+
+    public EventPatternMatcher getUserEventMatcher() {
+        return eventPatterns.getUserEventMatcher();
+    }
+
+    public EventPatternMatcher getAdminEventMatcher() {
+        return eventPatterns.getAdminEventMatcher();
+    }
+
+    public EventPatterns getEventPatterns() {
+        return eventPatterns;
+    }
+
+    public String getEventPatternsFile() {
+        return eventPatternsFile;
+    }
+
+    /**
+     * Compiles new user and admin event patterns and swaps them in atomically, a {@code null} source keeps the
+     * current patterns of that kind. Events being matched meanwhile finish with the previous patterns.
+     *
+     * @throws IllegalArgumentException when a pattern is invalid, the current patterns are kept
+     */
+    public synchronized EventPatterns reloadEventPatterns(String userSource, String adminSource) {
+        final EventPatterns current = eventPatterns;
+        final EventPatterns reloaded;
+        try {
+            reloaded = EventPatterns.compile(parser, messageFormat,
+                    userSource != null ? userSource : current.getUserSource(),
+                    adminSource != null ? adminSource : current.getAdminSource());
+        } catch (NullPointerException exception) {
+            // The parser reports missing or unknown components as null pointers
+            throw new IllegalArgumentException(exception.getMessage(), exception);
+        }
+        eventPatterns = reloaded;
+
+        logger.infof("%s: reloaded %d user and %d admin event pattern(s).", PLUGIN_NAME,
+                reloaded.getUserEventTypes().size(), reloaded.getAdminEventTypes().size());
+        logEventPatterns(reloaded);
+
+        return reloaded;
+    }
+
+    public long getBatchElementCountThreshold() {
+        return batchElementCountThreshold;
+    }
+
+    public long getBatchRequestByteThreshold() {
+        return batchRequestByteThreshold;
+    }
+
+    public long getBatchDelayThresholdMs() {
+        return batchDelayThresholdMs;
+    }
+
+    public Integer getExecutorThreadCount() {
+        return executorThreadCount;
+    }
+
+    public int getPublisherStripes() {
+        return publisherStripes;
+    }
+
+    public String getPublisherStripeKey() {
+        return publisherStripeKey;
+    }
+
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching;
+    }
+
+    public long getAdaptiveBatchMaxElementCount() {
+        return adaptiveBatchMaxElementCount;
+    }
+
+    public long getAdaptiveBatchMaxDelayMs() {
+        return adaptiveBatchMaxDelayMs;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public int getSpoolSegmentBytes() {
+        return spoolSegmentBytes;
+    }
+
+    public MessageSpool.FsyncPolicy getSpoolFsyncPolicy() {
+        return spoolFsyncPolicy;
+    }
+
+    public int getSpoolReplayRate() {
+        return spoolReplayRate;
+    }
+
+    public int getAsyncWorkerCount() {
+        return asyncWorkerCount;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    public EventDispatcher.OverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+
+    public long getAsyncBlockTimeoutMs() {
+        return asyncBlockTimeoutMs;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public MessageCompressor.Codec getCompressionCodec() {
+        return compressionCodec;
+    }
+
+    public int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public OrderingKeys.Source getUserEventOrderingKey() {
+        return userEventOrderingKey;
+    }
+
+    public OrderingKeys.Source getAdminEventOrderingKey() {
+        return adminEventOrderingKey;
+    }
+
+    public EventMessageSerializer.RepresentationMode getRepresentationMode() {
+        return representationMode;
+    }
+
+    public int getRepresentationMaxBytes() {
+        return representationMaxBytes;
+    }
+
+    public EventMessageSerializer.RepresentationOverflow getRepresentationOverflow() {
+        return representationOverflow;
+    }
+
+    public int getDiagnosticsBufferSize() {
+        return diagnosticsBufferSize;
+    }
+
+    public int getDiagnosticsSampleInterval() {
+        return diagnosticsSampleInterval;
+    }
+
+    public long getDiagnosticsLogIntervalSeconds() {
+        return diagnosticsLogIntervalSeconds;
+    }
+
+    public int getCoalesceMaxKeys() {
+        return coalesceMaxKeys;
+    }
+
+    public Set<String> getRateLimitExemptEventTypes() {
+        return rateLimitExemptEventTypes;
+    }
+
+    public long getRateLimitSummaryIntervalSeconds() {
+        return rateLimitSummaryIntervalSeconds;
+    }
+
+    public int getDedupMaxEntries() {
+        return dedupMaxEntries;
+    }
+
+    public long getDedupTtlSeconds() {
+        return dedupTtlSeconds;
+    }
+
+    public List<String> getEnrichUserFields() {
+        return enrichUserFields;
+    }
+
+    public List<String> getEnrichClientFields() {
+        return enrichClientFields;
+    }
+
+    public boolean isEnrichment() {
+        return !enrichUserFields.isEmpty() || !enrichClientFields.isEmpty();
+    }
+
+    public int getEnrichCacheMaxEntries() {
+        return enrichCacheMaxEntries;
+    }
+
+    public long getEnrichCacheTtlSeconds() {
+        return enrichCacheTtlSeconds;
+    }
+
+    public boolean isEnvelope() {
+        return envelope;
+    }
+
+    public int getEnvelopeMaxBytes() {
+        return envelopeMaxBytes;
+    }
+
+    public boolean isMessageOrdering() {
+        return userEventOrderingKey != OrderingKeys.Source.NONE || adminEventOrderingKey != OrderingKeys.Source.NONE;
+    }
+
+    public BatchingSettings createBatchingSettings() {
+        return createBatchingSettings(batchElementCountThreshold, batchRequestByteThreshold, batchDelayThresholdMs);
+    }
+
+    public BatchingSettings createBatchingSettings(long elementCountThreshold, long requestByteThreshold,
+                                                   long delayThresholdMs) {
+        BatchingSettings.Builder builder = BatchingSettings.newBuilder()
+                .setElementCountThreshold(elementCountThreshold)
+                .setRequestByteThreshold(requestByteThreshold)
+                .setDelayThreshold(Duration.ofMillis(delayThresholdMs));
+
+        // Flow control is only enabled when at least one outstanding limit is configured
+        if (flowControlMaxOutstandingElementCount != null || flowControlMaxOutstandingRequestBytes != null) {
+            builder.setFlowControlSettings(FlowControlSettings.newBuilder()
+                    .setMaxOutstandingElementCount(flowControlMaxOutstandingElementCount)
+                    .setMaxOutstandingRequestBytes(flowControlMaxOutstandingRequestBytes)
+                    .setLimitExceededBehavior(flowControlLimitExceededBehavior)
+                    .build());
+        }
+
+        return builder.build();
     }
 
     public static String createEventName(AdminEvent event) {
@@ -60,39 +371,91 @@ public class PubSubConfig {
 
     public static Map<String, String> getMessageAttributes(AdminEvent event, EventPattern pattern) {
         Map<String, String> attributes = new HashMap<>();
-        attributes.put("format", EventPattern.Format.JSON_API_V1.toString());
+        attributes.put("format", pattern.format.toString());
         attributes.put("who", "ADMIN");
         attributes.put("realmId", event.getRealmId());
         attributes.put("resourceType", event.getResourceTypeAsString());
         attributes.put("operationType", event.getOperationType().toString());
         attributes.put("result", processResult(event.getError()));
         attributes.put("event", pattern.alias != null ? pattern.alias : createEventName(event));
+        if (event.getId() != null) attributes.put("eventId", event.getId());
 
         return attributes;
     }
 
     public static Map<String, String> getMessageAttributes(Event event, EventPattern pattern) {
         Map<String, String> attributes = new HashMap<>();
-        attributes.put("format", EventPattern.Format.JSON_API_V1.toString());
+        attributes.put("format", pattern.format.toString());
         attributes.put("who", "USER");
         attributes.put("realmId", event.getRealmId());
         attributes.put("clientId", event.getClientId());
         attributes.put("eventType", event.getType().toString());
         attributes.put("result", processResult(event.getError()));
         attributes.put("event", pattern.alias != null ? pattern.alias : createEventName(event));
+        if (event.getId() != null) attributes.put("eventId", event.getId());
+
+        return attributes;
+    }
+
+    public static Map<String, String> getMessageAttributes(CoalescedEvents events) {
+        // Summaries are routed and filtered like the events they coalesce
+        Map<String, String> attributes = getMessageAttributes(events.getRepresentative(), events.getPattern());
+        attributes.put("coalesced", "true");
+        // The summary is a message of its own, it must not share the identity of the event that opened the window
+        if (events.getRepresentative().getId() != null) {
+            attributes.put("eventId", events.getRepresentative().getId() + "/coalesced");
+        }
+        attributes.put("count", Long.toString(events.getCount()));
+
+        return attributes;
+    }
+
+    public static Map<String, String> getMessageAttributes(ShedEvents events) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("format", events.getPattern().format.toString());
+        attributes.put("who", "USER");
+        attributes.put("realmId", events.getRealmId());
+        if (events.getEventType() != null) attributes.put("eventType", events.getEventType());
+        if (events.getPattern().alias != null) attributes.put("event", events.getPattern().alias);
+        attributes.put("shed", "true");
+        attributes.put("count", Long.toString(events.getCount()));
+
+        return attributes;
+    }
+
+    public static Map<String, String> getMessageAttributes(EventEnvelope envelope) {
+        // Attributes that differ between the events of the envelope are left out
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("format", envelope.getFormat().toString());
+        if (envelope.getWho() != null) attributes.put("who", envelope.getWho().toString());
+        if (envelope.getRealmId() != null) attributes.put("realmId", envelope.getRealmId());
+        if (envelope.getEvent() != null) attributes.put("event", envelope.getEvent());
+        // Envelopes of a transaction start with different events, so their first event identifies them
+        if (envelope.getFirstEventId() != null) {
+            attributes.put("eventId", envelope.getFirstEventId() + "/envelope");
+        }
+        attributes.put("envelope", "true");
+        attributes.put("count", Integer.toString(envelope.getCount()));
 
         return attributes;
     }
 
     public static PubSubConfig create(Config.Scope scope) {
         PubSubConfig config = new PubSubConfig();
-        String format = EventPattern.Format.JSON_API_V1.toString();
+        config.messageFormat = EventPattern.Format.JSON_API_V1.toString();
+
+        // Process the endpoint overrides, the emulator uses a plaintext channel without credentials
+        config.endpoint = resolveConfigVariable(scope, "pubsub_endpoint", null);
+        config.emulatorHost = resolveConfigVariable(scope, "pubsub_emulator_host",
+                System.getenv("PUBSUB_EMULATOR_HOST"));
 
         // Process the service account google credentials
         config.serviceAccountCredentialsFilePath = resolveConfigVariable(scope,
                 "pubsub_service_account_credentials_file_path", null);
-        Objects.requireNonNull(config.serviceAccountCredentialsFilePath,
-                String.format("%s: the pubsub service account credentials file path is required.", PLUGIN_NAME));
+        if (!config.isEmulator()) {
+            Objects.requireNonNull(config.serviceAccountCredentialsFilePath,
+                    String.format("%s: the pubsub service account credentials file path is required.", PLUGIN_NAME));
+        }
 
         // Process the project id
         config.projectId = resolveConfigVariable(scope, "pubsub_project_id", null);
@@ -102,32 +465,177 @@ public class PubSubConfig {
         config.topicId = resolveConfigVariable(scope, "pubsub_topic_id", null);
         Objects.requireNonNull(config.topicId, String.format("%s: the topic id is required.", PLUGIN_NAME));
 
-        // Process registered user events
-        final String userEvents = resolveConfigVariable(scope, "keycloak_user_event_patterns", "USER:*:*:*:*");
-        final EventPattern[] userEventPatterns = parseEventTypes(userEvents).stream()
-                .map(event -> parser.parse(format, event))
-                .toArray(EventPattern[]::new);
-        if (userEventPatterns.length > 0) config.userEventTypes.addAll(Arrays.asList(userEventPatterns));
+        // Process the publisher batching and flow control settings
+        config.batchElementCountThreshold = resolveLongConfigVariable(scope,
+                "pubsub_batch_element_count_threshold", 100L, 1);
+        config.batchRequestByteThreshold = resolveLongConfigVariable(scope,
+                "pubsub_batch_request_byte_threshold", 1000L, 1);
+        config.batchDelayThresholdMs = resolveLongConfigVariable(scope, "pubsub_batch_delay_threshold_ms", 1L, 1);
+        config.flowControlMaxOutstandingElementCount = resolveLongConfigVariable(scope,
+                "pubsub_flow_control_max_outstanding_element_count", null, 1);
+        config.flowControlMaxOutstandingRequestBytes = resolveLongConfigVariable(scope,
+                "pubsub_flow_control_max_outstanding_request_bytes", null, 1);
+        config.flowControlLimitExceededBehavior = parseLimitExceededBehavior(resolveConfigVariable(scope,
+                "pubsub_flow_control_limit_exceeded_behavior", "BLOCK"));
+        Long executorThreadCount = resolveLongConfigVariable(scope, "pubsub_executor_thread_count", null, 1);
+        config.executorThreadCount = executorThreadCount != null ? executorThreadCount.intValue() : null;
+
+        // Process the publisher stripes, each topic gets this many publishers to spread the publishing threads over
+        final long publisherStripes = resolveLongConfigVariable(scope, "pubsub_publisher_stripes", 1L);
+        if (publisherStripes < 1 || publisherStripes > MAX_PUBLISHER_STRIPES) {
+            throw new IllegalArgumentException(String.format("%s: the publisher stripes should be between 1 and %d.",
+                    PLUGIN_NAME, MAX_PUBLISHER_STRIPES));
+        }
+        config.publisherStripes = (int) publisherStripes;
+        config.publisherStripeKey = resolveConfigVariable(scope, "pubsub_publisher_stripe_key", null);
+        config.adaptiveBatching = Boolean.parseBoolean(resolveConfigVariable(scope,
+                "pubsub_batch_adaptive", "false"));
+        config.adaptiveBatchMaxElementCount = resolveLongConfigVariable(scope,
+                "pubsub_batch_adaptive_max_element_count", 1000L, 1);
+        config.adaptiveBatchMaxDelayMs = resolveLongConfigVariable(scope,
+                "pubsub_batch_adaptive_max_delay_ms", 100L, 1);
+
+        // Process the spool for undelivered messages, only enabled when a directory is configured
+        config.spoolDirectory = resolveConfigVariable(scope, "pubsub_spool_directory", null);
+        config.spoolMaxBytes = resolveLongConfigVariable(scope, "pubsub_spool_max_bytes", 1024L * 1024 * 1024);
+        config.spoolSegmentBytes = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_spool_segment_bytes", 64L * 1024 * 1024, MessageSpool.MIN_SEGMENT_BYTES));
+        config.spoolFsyncPolicy = parseEnum(MessageSpool.FsyncPolicy.class, "pubsub_spool_fsync_policy",
+                resolveConfigVariable(scope, "pubsub_spool_fsync_policy", "INTERVAL"));
+        config.spoolReplayRate = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_spool_replay_rate", 100L));
+
+        // Process the asynchronous hand-off, events are published on the request thread without workers
+        config.asyncWorkerCount = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_async_worker_count", 0L));
+        // Without room for a single event, every event would overflow and wait on the request thread
+        config.asyncQueueCapacity = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_async_queue_capacity", 10000L, config.asyncWorkerCount > 0 ? 1 : 0));
+        config.asyncOverflowPolicy = parseEnum(EventDispatcher.OverflowPolicy.class, "pubsub_async_overflow_policy",
+                resolveConfigVariable(scope, "pubsub_async_overflow_policy", "BLOCK"));
+        config.asyncBlockTimeoutMs = resolveLongConfigVariable(scope, "pubsub_async_block_timeout_ms", 100L);
+
+        // Process the metrics, only published when the Micrometer registry is available
+        config.metricsEnabled = Boolean.parseBoolean(resolveConfigVariable(scope, "pubsub_metrics_enabled", "true"));
+
+        // Process the message body compression, bodies below the threshold are published uncompressed
+        config.compressionCodec = parseEnum(MessageCompressor.Codec.class, "pubsub_compression",
+                resolveConfigVariable(scope, "pubsub_compression", "NONE"));
+        config.compressionThresholdBytes = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_compression_threshold_bytes", 4096L));
+        if (config.compressionCodec == MessageCompressor.Codec.ZSTD && !MessageCompressor.isZstdAvailable()) {
+            throw new IllegalArgumentException(String.format(
+                    "%s: zstd compression requires zstd-jni on the class path.", PLUGIN_NAME));
+        }
+        Long compressionLevel = resolveLongConfigVariable(scope, "pubsub_compression_level", null);
+        config.compressionLevel = compressionLevel != null
+                ? (int) Math.min(Integer.MAX_VALUE, compressionLevel) : MessageCompressor.DEFAULT_LEVEL;
+        if (compressionLevel != null && config.compressionCodec != MessageCompressor.Codec.NONE
+                && (config.compressionLevel < MessageCompressor.getMinLevel(config.compressionCodec)
+                || config.compressionLevel > MessageCompressor.getMaxLevel(config.compressionCodec))) {
+            // An invalid level would only fail once the first body above the threshold is compressed
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: configuration 'pubsub_compression_level' should be between %d and %d for %s, but '%d' was "
+                            + "found.", PLUGIN_NAME, MessageCompressor.getMinLevel(config.compressionCodec),
+                    MessageCompressor.getMaxLevel(config.compressionCodec), config.compressionCodec, compressionLevel));
+        }
 
-        // Process registered admin events
-        final String adminEvents = resolveConfigVariable(scope, "keycloak_admin_event_patterns", "ADMIN:*:*:*:*");
-        final EventPattern[] adminEventPatterns = parseEventTypes(adminEvents).stream()
-                .map(event -> parser.parse(format, event))
-                .toArray(EventPattern[]::new);
-        if (adminEventPatterns.length > 0) config.adminEventTypes.addAll(Arrays.asList(adminEventPatterns));
+        // Process the message ordering, user events have no resource path to derive a key from
+        config.userEventOrderingKey = parseEnum(OrderingKeys.Source.class, "pubsub_user_event_ordering_key",
+                resolveConfigVariable(scope, "pubsub_user_event_ordering_key", "NONE"));
+        if (config.userEventOrderingKey == OrderingKeys.Source.RESOURCE_PATH) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: user events cannot be ordered by resource path.", PLUGIN_NAME));
+        }
+        config.adminEventOrderingKey = parseEnum(OrderingKeys.Source.class, "pubsub_admin_event_ordering_key",
+                resolveConfigVariable(scope, "pubsub_admin_event_ordering_key", "NONE"));
+
+        // Process the admin event representations, only published when the realm includes them
+        config.representationMode = parseEnum(EventMessageSerializer.RepresentationMode.class,
+                "pubsub_representation_mode", resolveConfigVariable(scope, "pubsub_representation_mode", "STRING"));
+        config.representationMaxBytes = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_representation_max_bytes", 0L));
+        config.representationOverflow = parseEnum(EventMessageSerializer.RepresentationOverflow.class,
+                "pubsub_representation_overflow",
+                resolveConfigVariable(scope, "pubsub_representation_overflow", "TRUNCATE"));
+
+        // Process the diagnostics, recent messages are kept in a buffer and only summaries are logged
+        config.diagnosticsBufferSize = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_diagnostics_buffer_size", 256L));
+        config.diagnosticsSampleInterval = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_diagnostics_sample_interval", 100L));
+        config.diagnosticsLogIntervalSeconds = resolveLongConfigVariable(scope,
+                "pubsub_diagnostics_log_interval_seconds", 60L);
+
+        // Process the coalescing of user events, enabled per pattern with the coalesce option
+        config.coalesceMaxKeys = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_coalesce_max_keys", 10000L));
+
+        // Process the rate limits, set per pattern with the rate option. Admin events are never shed
+        final Set<String> exemptEventTypes = new HashSet<>();
+        for (String eventType : resolveConfigVariable(scope, "pubsub_rate_limit_exempt_event_types", "REGISTER")
+                .split(",")) {
+            if (!eventType.trim().isEmpty()) exemptEventTypes.add(eventType.trim().toUpperCase(Locale.US));
+        }
+        config.rateLimitExemptEventTypes = Collections.unmodifiableSet(exemptEventTypes);
+        config.rateLimitSummaryIntervalSeconds = resolveLongConfigVariable(scope,
+                "pubsub_rate_limit_summary_interval_seconds", 60L);
+        if (config.rateLimitSummaryIntervalSeconds <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "%s: the rate limit summary interval should be positive.", PLUGIN_NAME));
+        }
 
-        // List all event pattern rules
-        if (logger.isInfoEnabled()) {
-            logger.infof("Listing all admin event rules");
-            config.adminEventTypes.forEach(pattern -> logger.infof(pattern.toString()));
+        // Process the suppression of events delivered more than once, 0 entries disables it
+        config.dedupMaxEntries = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_dedup_max_entries", 100000L));
+        config.dedupTtlSeconds = resolveLongConfigVariable(scope, "pubsub_dedup_ttl_seconds", 600L);
+        if (config.dedupMaxEntries < 0 || config.dedupTtlSeconds <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "%s: the dedup max entries should not be negative and its ttl should be positive.", PLUGIN_NAME));
+        }
+
+        // Process the enrichment of user events with user and client fields, disabled without fields
+        config.enrichUserFields = parseList(resolveConfigVariable(scope, "pubsub_enrich_user_fields", ""));
+        config.enrichClientFields = parseList(resolveConfigVariable(scope, "pubsub_enrich_client_fields", ""));
+        config.enrichCacheMaxEntries = (int) Math.min(Integer.MAX_VALUE, resolveLongConfigVariable(scope,
+                "pubsub_enrich_cache_max_entries", 10000L));
+        config.enrichCacheTtlSeconds = resolveLongConfigVariable(scope, "pubsub_enrich_cache_ttl_seconds", 300L);
+        if (config.enrichCacheMaxEntries < 0 || config.enrichCacheTtlSeconds < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "%s: the enrichment cache max entries and ttl should not be negative.", PLUGIN_NAME));
+        }
 
-            logger.infof("Listing all user event rules");
-            config.userEventTypes.forEach(pattern -> logger.infof(pattern.toString()));
+        // Process the envelopes, the matched events of a transaction are then published as a single message
+        config.envelope = Boolean.parseBoolean(resolveConfigVariable(scope, "pubsub_envelope_enabled", "false"));
+        config.envelopeMaxBytes = (int) Math.min(MAX_ENVELOPE_BYTES, resolveLongConfigVariable(scope,
+                "pubsub_envelope_max_bytes", 1024L * 1024));
+        if (config.envelopeMaxBytes <= 0) {
+            throw new IllegalArgumentException(String.format("%s: the envelope max bytes should be positive.",
+                    PLUGIN_NAME));
         }
 
+        // Process registered user and admin events, they can be reloaded from a file at runtime
+        final String userEvents = resolveConfigVariable(scope, "keycloak_user_event_patterns", "USER:*:*:*:*");
+        final String adminEvents = resolveConfigVariable(scope, "keycloak_admin_event_patterns", "ADMIN:*:*:*:*");
+        config.eventPatterns = EventPatterns.compile(parser, config.messageFormat, userEvents, adminEvents);
+        config.eventPatternsFile = resolveConfigVariable(scope, "pubsub_event_patterns_file", null);
+
+        // List all event pattern rules
+        logEventPatterns(config.eventPatterns);
+
         return config;
     }
 
+    private static void logEventPatterns(EventPatterns patterns) {
+        if (!logger.isInfoEnabled()) return;
+
+        logger.infof("Listing all admin event rules");
+        patterns.getAdminEventTypes().forEach(pattern -> logger.infof(pattern.toString()));
+
+        logger.infof("Listing all user event rules");
+        patterns.getUserEventTypes().forEach(pattern -> logger.infof(pattern.toString()));
+    }
+
     private static String resolveConfigVariable(Config.Scope scope, String variable, String defaultValue) {
         Objects.requireNonNull(variable, String.format("%s: the variable name is required.", PLUGIN_NAME));
 
@@ -150,12 +658,56 @@ public class PubSubConfig {
         return value;
     }
 
-    private static List<String> parseEventTypes(String events) {
-        if (events == null || events.trim().isEmpty()) return new ArrayList<>();
+    private static Long resolveLongConfigVariable(Config.Scope scope, String variable, Long defaultValue) {
+        return resolveLongConfigVariable(scope, variable, defaultValue, 0);
+    }
+
+    private static Long resolveLongConfigVariable(Config.Scope scope, String variable, Long defaultValue,
+                                                  long minValue) {
+        String value = resolveConfigVariable(scope, variable, defaultValue != null ? defaultValue.toString() : null);
+        if (value == null || value.trim().isEmpty()) return null;
+
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number < minValue) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException exception) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: configuration '%s' should be a number of at least %d, but '%s' was found.",
+                    PLUGIN_NAME, variable, minValue, value));
+        }
+    }
+
+    private static List<String> parseList(String value) {
+        // Names are kept as they are, user and client attribute names are case sensitive
+        final List<String> values = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty() && !values.contains(item.trim())) values.add(item.trim());
+        }
+
+        return Collections.unmodifiableList(values);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String variable, String value) {
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: configuration '%s' should be one of: %s, but '%s' was found.",
+                    PLUGIN_NAME, variable, Arrays.toString(type.getEnumConstants()), value));
+        }
+    }
+
+    private static FlowController.LimitExceededBehavior parseLimitExceededBehavior(String value) {
+        // Accept both BLOCK/THROW_EXCEPTION/IGNORE and the library's Block/ThrowException/Ignore spelling
+        String normalized = value.trim().replace("_", "");
+        for (FlowController.LimitExceededBehavior behavior : FlowController.LimitExceededBehavior.values()) {
+            if (behavior.name().equalsIgnoreCase(normalized)) return behavior;
+        }
 
-        return Arrays.stream(events.split(","))
-                .map(item -> item.trim().toUpperCase(Locale.US))
-                .collect(Collectors.toList());
+        throw new IllegalArgumentException(String.format(Locale.US,
+                "%s: flow control limit exceeded behavior should be one of: %s, but '%s' was found.",
+                PLUGIN_NAME, Arrays.toString(FlowController.LimitExceededBehavior.values()), value));
     }
 
     private static String processResult(String error) {
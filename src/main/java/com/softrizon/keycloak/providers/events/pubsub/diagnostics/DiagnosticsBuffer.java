@@ -0,0 +1,209 @@
+package com.softrizon.keycloak.providers.events.pubsub.diagnostics;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Keeps the most recent published, ignored, coalesced, shed and failed messages for troubleshooting instead of logging
+ * each of them.
+ * <p>
+ * Every outcome is counted, but only one in {@code sampleInterval} messages of the other outcomes is kept, failures
+ * are always kept. Entries hold event metadata, never message bodies, and the oldest one is overwritten once the
+ * buffer is full. Recording is lock-free, and the counts are logged as a summary once per log interval.
+ */
+public class DiagnosticsBuffer implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(DiagnosticsBuffer.class);
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Outcome, LongAdder> counts = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, Long> loggedCounts = new EnumMap<>(Outcome.class);
+    private final int sampleInterval;
+    private final ScheduledExecutorService scheduler;
+
+    public DiagnosticsBuffer(int capacity, int sampleInterval, long logIntervalSeconds) {
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.sampleInterval = sampleInterval;
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome, new LongAdder());
+            loggedCounts.put(outcome, 0L);
+        }
+
+        if (logIntervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, PLUGIN_NAME + "-diagnostics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::logSummary, logIntervalSeconds, logIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Counts one message with {@code outcome} and returns whether it should also be recorded, so that callers only
+     * build an entry for sampled messages.
+     */
+    public boolean count(Outcome outcome) {
+        counts.get(outcome).increment();
+        if (entries.length() == 0) return false;
+        if (outcome == Outcome.FAILED) return true;
+
+        return sampleInterval > 0 && (sampleInterval == 1 || ThreadLocalRandom.current().nextInt(sampleInterval) == 0);
+    }
+
+    public void record(Outcome outcome, String realmId, String eventId, String eventName, String topicId,
+                       String messageId, int bodyBytes, Throwable error) {
+        if (entries.length() == 0) return;
+
+        final long position = sequence.getAndIncrement();
+        entries.set((int) (position % entries.length()), new Entry(position, System.currentTimeMillis(), outcome,
+                realmId, eventId, eventName, topicId, messageId, bodyBytes, error));
+    }
+
+    /**
+     * Returns up to {@code max} recorded entries of {@code realmId}, newest first. A {@code null} realm id or outcome
+     * matches all entries.
+     */
+    public List<Entry> snapshot(String realmId, Outcome outcome, int max) {
+        final List<Entry> snapshot = new ArrayList<>(Math.min(max, entries.length()));
+        final long last = sequence.get() - 1;
+        for (long position = last; position >= 0 && position > last - entries.length(); position--) {
+            final Entry entry = entries.get((int) (position % entries.length()));
+            // Skip slots already overwritten by newer entries, or not written yet
+            if (entry == null || entry.sequence != position) continue;
+            if (realmId != null && !realmId.equals(entry.realmId)) continue;
+            if (outcome != null && outcome != entry.outcome) continue;
+
+            snapshot.add(entry);
+            if (snapshot.size() >= max) break;
+        }
+
+        return snapshot;
+    }
+
+    public Map<Outcome, Long> getCounts() {
+        final Map<Outcome, Long> totals = new EnumMap<>(Outcome.class);
+        counts.forEach((outcome, count) -> totals.put(outcome, count.sum()));
+
+        return totals;
+    }
+
+    @Override
+    public void close() {
+        if (scheduler == null) return;
+
+        scheduler.shutdownNow();
+        logSummary();
+    }
+
+    synchronized void logSummary() {
+        final Map<Outcome, Long> totals = getCounts();
+        final long published = totals.get(Outcome.PUBLISHED) - loggedCounts.get(Outcome.PUBLISHED);
+        final long ignored = totals.get(Outcome.IGNORED) - loggedCounts.get(Outcome.IGNORED);
+        final long failed = totals.get(Outcome.FAILED) - loggedCounts.get(Outcome.FAILED);
+        final long coalesced = totals.get(Outcome.COALESCED) - loggedCounts.get(Outcome.COALESCED);
+        final long shed = totals.get(Outcome.SHED) - loggedCounts.get(Outcome.SHED);
+        final long duplicate = totals.get(Outcome.DUPLICATE) - loggedCounts.get(Outcome.DUPLICATE);
+        loggedCounts.putAll(totals);
+        if (published == 0 && ignored == 0 && failed == 0 && coalesced == 0 && shed == 0 && duplicate == 0) return;
+
+        // Shed events mean a realm exceeds its rate limit, which deserves attention like failures do
+        if (failed > 0 || shed > 0) {
+            logger.warnf("%s: %d message(s) published and %d failed, %d event(s) ignored, %d coalesced, %d shed and "
+                    + "%d duplicate since the last summary.", PLUGIN_NAME, published, failed, ignored, coalesced, shed,
+                    duplicate);
+        } else {
+            logger.infof("%s: %d message(s) published, %d event(s) ignored, %d coalesced and %d duplicate since the "
+                    + "last summary.", PLUGIN_NAME, published, ignored, coalesced, duplicate);
+        }
+    }
+
+    public enum Outcome {PUBLISHED, IGNORED, COALESCED, SHED, DUPLICATE, FAILED}
+
+    /**
+     * A recorded message, serialized as is by the diagnostics resource.
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final Outcome outcome;
+        private final String realmId;
+        private final String eventId;
+        private final String eventName;
+        private final String topicId;
+        private final String messageId;
+        private final int bodyBytes;
+        private final String error;
+
+        private Entry(long sequence, long timestamp, Outcome outcome, String realmId, String eventId,
+                      String eventName, String topicId, String messageId, int bodyBytes, Throwable error) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.outcome = outcome;
+            this.realmId = realmId;
+            this.eventId = eventId;
+            this.eventName = eventName;
+            this.topicId = topicId;
+            this.messageId = messageId;
+            this.bodyBytes = bodyBytes;
+            this.error = error != null ? error.toString() : null;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getEventId() {
+            return eventId;
+        }
+
+        public String getEventName() {
+            return eventName;
+        }
+
+        public String getTopicId() {
+            return topicId;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public int getBodyBytes() {
+            return bodyBytes;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+}
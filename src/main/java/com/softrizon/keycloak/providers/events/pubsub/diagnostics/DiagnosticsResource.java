@@ -0,0 +1,56 @@
+package com.softrizon.keycloak.providers.events.pubsub.diagnostics;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Admin REST resource listing the recent messages of a realm, at
+ * {@code GET /admin/realms/{realm}/pubsub-diagnostics?outcome=FAILED&max=50}. Requires the view-events role.
+ */
+public class DiagnosticsResource {
+
+    static final int DEFAULT_MAX_ENTRIES = 100;
+
+    private final DiagnosticsBuffer diagnostics;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+
+    public DiagnosticsResource(DiagnosticsBuffer diagnostics, RealmModel realm, AdminPermissionEvaluator auth) {
+        this.diagnostics = diagnostics;
+        this.realm = realm;
+        this.auth = auth;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getDiagnostics(@QueryParam("outcome") String outcome, @QueryParam("max") Integer max) {
+        auth.realm().requireViewEvents();
+
+        final Map<String, Object> report = new LinkedHashMap<>();
+        // Counts cover all realms, they hold no event data
+        report.put("counts", diagnostics.getCounts());
+        report.put("entries", diagnostics.snapshot(realm.getId(), parseOutcome(outcome),
+                max != null && max > 0 ? max : DEFAULT_MAX_ENTRIES));
+
+        return report;
+    }
+
+    private static DiagnosticsBuffer.Outcome parseOutcome(String outcome) {
+        if (outcome == null || outcome.trim().isEmpty()) return null;
+
+        try {
+            return DiagnosticsBuffer.Outcome.valueOf(outcome.trim().toUpperCase(Locale.US));
+        } catch (IllegalArgumentException exception) {
+            throw new BadRequestException("Unknown outcome: " + outcome);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.softrizon.keycloak.providers.events.pubsub.dispatch;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Hands event processing off the Keycloak request threads to a small pool of dedicated workers.
+ * <p>
+ * Request threads enqueue into a bounded, lock-free queue and return immediately. When the queue is full the
+ * configured {@link OverflowPolicy} applies. High priority tasks are never dropped, if they cannot be queued they
+ * run on the calling thread instead.
+ * <p>
+ * Tasks dispatched with an affinity key always go to the same worker, so tasks sharing a key run in dispatch order
+ * while tasks of unrelated keys still run in parallel. Workers drain their own queue before the shared one, and park
+ * until a task is queued for them when both are empty. To keep that order, a keyed task never leaves its worker queue
+ * when the queue is full: it is neither spilled nor run on the calling thread, and never removed to make room. Once
+ * BLOCK times out, and with the other policies, a keyed low priority task is dropped and a keyed high priority task is
+ * queued on its worker above the capacity.
+ * <p>
+ * Closing lets the workers drain every queued task. Tasks dispatched once the dispatcher is closed run on the calling
+ * thread, and tasks still queued when the workers do not finish in time run on the closing thread.
+ */
+public class EventDispatcher implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(EventDispatcher.class);
+
+    static final long DRAIN_TIMEOUT_SECONDS = 30;
+    static final long DROP_LOG_INTERVAL = 1000;
+
+    private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+    private final List<Queue<Task>> workerQueues;
+    private final Semaphore slots;
+    // Tasks being dispatched or queued, workers only exit once the dispatcher is closed and this drops to zero
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicIntegerArray idle; // 1 while a worker parks
+    private final AtomicLong dropped = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    public EventDispatcher(int capacity, int workerCount, OverflowPolicy overflowPolicy, long blockTimeoutMs) {
+        this.slots = new Semaphore(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+
+        idle = new AtomicIntegerArray(workerCount);
+        workerQueues = new ArrayList<>(workerCount);
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            final int index = i;
+            workerQueues.add(new ConcurrentLinkedQueue<>());
+            workers[i] = new Thread(() -> work(index), PLUGIN_NAME + "-dispatcher-" + i);
+            workers[i].setDaemon(true);
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues {@code task} for a worker. {@code spill} is run on the calling thread instead when the queue is full
+     * and the overflow policy is {@link OverflowPolicy#SPILL}.
+     */
+    public void dispatch(Priority priority, Runnable task, Runnable spill) {
+        dispatch(priority, null, task, spill);
+    }
+
+    /**
+     * Queues {@code task} like {@link #dispatch(Priority, Runnable, Runnable)}, on the worker that owns
+     * {@code affinityKey}. A {@code null} key lets any worker run the task, {@code spill} is never run for a keyed
+     * task.
+     */
+    public void dispatch(Priority priority, String affinityKey, Runnable task, Runnable spill) {
+        final Task newTask = new Task(priority, task, workerOf(affinityKey));
+        // Counted before the closed check, so that workers cannot exit between the check and the offer
+        pending.incrementAndGet();
+        boolean queued = false;
+        try {
+            if (closed) { // Shutting down, keep processing on the calling thread
+                runSafely(task);
+            } else if (slots.tryAcquire()) {
+                queued = offer(newTask);
+            } else {
+                queued = overflow(newTask, spill);
+            }
+        } finally {
+            if (!queued) release(false);
+        }
+    }
+
+    public int getQueueSize() {
+        return pending.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        wakeAll();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        for (Thread worker : workers) {
+            try {
+                TimeUnit.NANOSECONDS.timedJoin(worker, Math.max(1, deadline - System.nanoTime()));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                logger.debugf(exception, "%s: awaiting dispatcher worker termination interrupted.", PLUGIN_NAME);
+                break;
+            }
+        }
+
+        // Workers still busy past the timeout leave their tasks to the closing thread
+        int count = drain(queue);
+        for (Queue<Task> workerQueue : workerQueues) {
+            count += drain(workerQueue);
+        }
+        if (count > 0) {
+            logger.warnf("%s: dispatcher workers did not finish in time, %d queued event(s) processed on close.",
+                    PLUGIN_NAME, count);
+        }
+    }
+
+    private boolean overflow(Task task, Runnable spill) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                if (awaitSlot()) return offer(task);
+                break;
+            case DROP_OLDEST:
+                // Only tasks without a key are removed, the shared queue holds no others
+                if (removeOldestLowPriority(queue)) {
+                    drop();
+                    return offer(task); // Takes over the slot of the removed task
+                }
+                break;
+            case SPILL:
+                // Spilled tasks are replayed later, after the tasks queued meanwhile
+                if (task.worker >= 0) break;
+                runSafely(spill);
+                return false;
+        }
+
+        if (task.priority == Priority.LOW) {
+            drop();
+            return false;
+        }
+        if (task.worker >= 0) {
+            task.slot = false;
+            return offer(task);
+        }
+        runSafely(task.runnable);
+        return false;
+    }
+
+    private boolean awaitSlot() {
+        try {
+            return slots.tryAcquire(blockTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean offer(Task task) {
+        if (task.worker < 0) {
+            queue.offer(task);
+            // Any idle worker will do, busy ones poll the shared queue once done
+            for (int i = 0; i < workers.length; i++) {
+                if (wake(i)) break;
+            }
+        } else {
+            workerQueues.get(task.worker).offer(task);
+            wake(task.worker);
+        }
+
+        return true;
+    }
+
+    private void work(int index) {
+        final Queue<Task> ownQueue = workerQueues.get(index);
+        while (true) {
+            Task task = poll(ownQueue);
+            if (task == null) {
+                // Marked idle before polling again, a task queued in between either is seen or unparks the worker
+                idle.set(index, 1);
+                task = poll(ownQueue);
+                if (task == null) {
+                    if (closed && pending.get() == 0) return; // Drained
+                    LockSupport.park(this);
+                    idle.set(index, 0);
+                    continue;
+                }
+                idle.set(index, 0);
+            }
+
+            release(task.slot);
+            runSafely(task.runnable);
+        }
+    }
+
+    private Task poll(Queue<Task> ownQueue) {
+        final Task task = ownQueue.poll();
+        return task != null ? task : queue.poll();
+    }
+
+    private boolean wake(int index) {
+        if (!idle.compareAndSet(index, 1, 0)) return false;
+
+        LockSupport.unpark(workers[index]);
+        return true;
+    }
+
+    private void wakeAll() {
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void release(boolean slot) {
+        if (slot) slots.release();
+        if (pending.decrementAndGet() == 0 && closed) wakeAll();
+    }
+
+    private int drain(Queue<Task> tasks) {
+        int count = 0;
+        for (Task task = tasks.poll(); task != null; task = tasks.poll()) {
+            release(task.slot);
+            runSafely(task.runnable);
+            count++;
+        }
+
+        return count;
+    }
+
+    private int workerOf(String affinityKey) {
+        if (affinityKey == null) return -1;
+
+        return (affinityKey.hashCode() & Integer.MAX_VALUE) % workers.length;
+    }
+
+    private boolean removeOldestLowPriority(Queue<Task> tasks) {
+        for (Task task : tasks) {
+            // Removing by identity is atomic, so a task taken by a worker meanwhile is never counted twice
+            if (task.priority == Priority.LOW && tasks.remove(task)) {
+                pending.decrementAndGet(); // Its slot goes to the new task
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void drop() {
+        final long count = dropped.incrementAndGet();
+        if (count == 1 || count % DROP_LOG_INTERVAL == 0) {
+            logger.warnf("%s: event queue is full, %d low priority event(s) dropped so far.", PLUGIN_NAME, count);
+        }
+    }
+
+    private static void runSafely(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Throwable throwable) {
+            logger.errorf(throwable, "%s: failed to process event.", PLUGIN_NAME);
+        }
+    }
+
+    public enum OverflowPolicy {BLOCK, DROP_OLDEST, SPILL}
+
+    public enum Priority {LOW, HIGH}
+
+    private static final class Task {
+        private final Priority priority;
+        private final Runnable runnable;
+        private final int worker; // -1 for the shared queue
+        private boolean slot = true; // False when queued above the capacity
+
+        private Task(Priority priority, Runnable runnable, int worker) {
+            this.priority = priority;
+            this.runnable = runnable;
+            this.worker = worker;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.softrizon.keycloak.providers.events.pubsub.enrichment;
+
+import com.softrizon.keycloak.providers.events.pubsub.events.ResourcePaths;
+import com.softrizon.keycloak.providers.events.pubsub.events.UserEventMessage;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Adds configured user and client fields to user events, so consumers do not need to call back into Keycloak to
+ * resolve the ids they carry.
+ * <p>
+ * Fields are resolved through the providers of the session that emitted the event and kept in two bounded LRU caches
+ * shared by all sessions, one for users and one for clients. Each cache is split in {@link #STRIPES} independently
+ * locked maps, as every user event goes through them on a request thread. Entries expire after the ttl, and are dropped
+ * right away when an admin event updates or deletes their user or client, or when a user event changes its own user.
+ * Other cluster nodes only see such changes once their entries expire.
+ */
+public class EventEnricher {
+
+    private static final Logger logger = Logger.getLogger(EventEnricher.class);
+
+    static final int STRIPES = 16; // Power of two
+
+    // User events after which the cached fields of their user are stale
+    private static final Set<EventType> USER_CHANGING_EVENTS = EnumSet.of(EventType.UPDATE_PROFILE,
+            EventType.UPDATE_EMAIL, EventType.VERIFY_EMAIL, EventType.DELETE_ACCOUNT);
+
+    private final List<String> userFields;
+    private final List<String> clientFields;
+    private final LruCache users;
+    private final LruCache clients;
+
+    public EventEnricher(List<String> userFields, List<String> clientFields, int maxEntries, long ttlSeconds) {
+        this.userFields = Objects.requireNonNull(userFields);
+        this.clientFields = Objects.requireNonNull(clientFields);
+        users = new LruCache(maxEntries, TimeUnit.SECONDS.toNanos(ttlSeconds));
+        clients = new LruCache(maxEntries, TimeUnit.SECONDS.toNanos(ttlSeconds));
+    }
+
+    /**
+     * Returns a copy of {@code event} carrying the configured fields of its user and client, or {@code event} itself
+     * when neither was found. Must be called while the session of the event is open.
+     */
+    public Event enrich(KeycloakSession session, Event event) {
+        final RealmHolder realm = new RealmHolder(session, event.getRealmId());
+        Map<String, String> user = null;
+        Map<String, String> client = null;
+        try {
+            if (!userFields.isEmpty() && event.getUserId() != null) {
+                final Key key = new Key(event.getRealmId(), event.getUserId());
+                // The event may just have changed the user, its session already sees the new fields
+                if (USER_CHANGING_EVENTS.contains(event.getType())) users.invalidate(key);
+                user = users.get(key, () -> loadUser(session, realm.get(), key.id));
+            }
+            if (!clientFields.isEmpty() && event.getClientId() != null) {
+                final Key key = new Key(event.getRealmId(), event.getClientId());
+                client = clients.get(key, () -> loadClient(session, realm.get(), key.id));
+            }
+        } catch (RuntimeException exception) {
+            // Enrichment is best effort, it must never fail the request that emitted the event
+            logger.debugf(exception, "%s: failed to enrich user event id '%s'.", PLUGIN_NAME, event.getId());
+        }
+        if (user == null && client == null) return event;
+
+        final UserEventMessage message = UserEventMessage.create(event);
+        message.setUser(user);
+        message.setClient(client);
+
+        return message;
+    }
+
+    /**
+     * Drops the cached fields of the user or client {@code event} updated or deleted. Called once the admin event is
+     * committed, so a lookup that follows sees the change.
+     */
+    public void invalidate(AdminEvent event) {
+        if (event.getOperationType() != OperationType.UPDATE && event.getOperationType() != OperationType.DELETE) {
+            return;
+        }
+
+        if (event.getResourceType() == ResourceType.USER) {
+            final String userId = ResourcePaths.resourceId(event.getResourcePath(), ResourcePaths.USERS_PREFIX);
+            if (userId != null) users.invalidate(new Key(event.getRealmId(), userId));
+        } else if (event.getResourceType() == ResourceType.CLIENT) {
+            // Client entries are keyed by client id, admin events name the client by its internal id
+            final String internalId = ResourcePaths.resourceId(event.getResourcePath(), ResourcePaths.CLIENTS_PREFIX);
+            if (internalId != null) clients.invalidateInternalId(event.getRealmId(), internalId);
+        }
+    }
+
+    private Cached loadUser(KeycloakSession session, RealmModel realm, String userId) {
+        final UserModel user = realm != null ? session.users().getUserById(realm, userId) : null;
+        if (user == null) return null;
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+        for (String field : userFields) {
+            putIfNotNull(fields, field, userField(user, field));
+        }
+
+        return new Cached(user.getId(), Collections.unmodifiableMap(fields));
+    }
+
+    private Cached loadClient(KeycloakSession session, RealmModel realm, String clientId) {
+        final ClientModel client = realm != null ? session.clients().getClientByClientId(realm, clientId) : null;
+        if (client == null) return null;
+
+        final Map<String, String> fields = new LinkedHashMap<>();
+        for (String field : clientFields) {
+            putIfNotNull(fields, field, clientField(client, field));
+        }
+
+        return new Cached(client.getId(), Collections.unmodifiableMap(fields));
+    }
+
+    private static String userField(UserModel user, String field) {
+        switch (field) {
+            case "username":
+                return user.getUsername();
+            case "email":
+                return user.getEmail();
+            case "firstName":
+                return user.getFirstName();
+            case "lastName":
+                return user.getLastName();
+            case "emailVerified":
+                return Boolean.toString(user.isEmailVerified());
+            case "enabled":
+                return Boolean.toString(user.isEnabled());
+            case "createdTimestamp":
+                return user.getCreatedTimestamp() != null ? user.getCreatedTimestamp().toString() : null;
+            default:
+                return user.getFirstAttribute(field);
+        }
+    }
+
+    private static String clientField(ClientModel client, String field) {
+        switch (field) {
+            case "name":
+                return client.getName();
+            case "description":
+                return client.getDescription();
+            case "protocol":
+                return client.getProtocol();
+            case "rootUrl":
+                return client.getRootUrl();
+            case "baseUrl":
+                return client.getBaseUrl();
+            default:
+                return client.getAttribute(field);
+        }
+    }
+
+    private static void putIfNotNull(Map<String, String> fields, String field, String value) {
+        if (value != null) fields.put(field, value);
+    }
+
+    /**
+     * Looks the realm up on the first cache miss only.
+     */
+    private static final class RealmHolder {
+        private final KeycloakSession session;
+        private final String realmId;
+        private RealmModel realm;
+        private boolean resolved;
+
+        private RealmHolder(KeycloakSession session, String realmId) {
+            this.session = session;
+            this.realmId = realmId;
+        }
+
+        private RealmModel get() {
+            if (!resolved) {
+                realm = realmId != null ? session.realms().getRealm(realmId) : null;
+                resolved = true;
+            }
+
+            return realm;
+        }
+    }
+
+    private static final class Cached {
+        private final String internalId;
+        private final Map<String, String> fields;
+        private long loadedAt;
+
+        private Cached(String internalId, Map<String, String> fields) {
+            this.internalId = internalId;
+            this.fields = fields;
+        }
+    }
+
+    private interface Loader {
+        Cached load();
+    }
+
+    /**
+     * A bounded cache of lookups, split in stripes by key hash. Each stripe evicts its own least recently used entry,
+     * so the bound is approximate.
+     */
+    private static final class LruCache {
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        private LruCache(int maxEntries, long ttlNanos) {
+            // Rounded up, so small caches still keep an entry per stripe
+            final int stripeEntries = (maxEntries + STRIPES - 1) / STRIPES;
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe(stripeEntries, ttlNanos);
+            }
+        }
+
+        private Map<String, String> get(Key key, Loader loader) {
+            return stripe(key).get(key, loader);
+        }
+
+        private void invalidate(Key key) {
+            stripe(key).invalidate(key);
+        }
+
+        private void invalidateInternalId(String realmId, String internalId) {
+            for (Stripe stripe : stripes) {
+                stripe.invalidateInternalId(realmId, internalId);
+            }
+        }
+
+        private Stripe stripe(Key key) {
+            // Spread the high bits, string hash codes of similar ids differ mostly in their low bits
+            return stripes[(key.hash ^ (key.hash >>> 16)) & (STRIPES - 1)];
+        }
+    }
+
+    /**
+     * An access ordered map of cached lookups. Lookups run outside of the lock, and their result is only kept when no
+     * invalidation happened meanwhile, so a lookup racing with a change never caches the old fields.
+     */
+    private static final class Stripe {
+        private final int maxEntries;
+        private final long ttlNanos;
+        private final LinkedHashMap<Key, Cached> entries;
+        private long invalidations; // Guarded by this
+
+        private Stripe(int maxEntries, long ttlNanos) {
+            this.maxEntries = maxEntries;
+            this.ttlNanos = ttlNanos;
+            entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                    return size() > Stripe.this.maxEntries;
+                }
+            };
+        }
+
+        private Map<String, String> get(Key key, Loader loader) {
+            final long now = System.nanoTime();
+            final long generation;
+            synchronized (this) {
+                final Cached cached = entries.get(key);
+                if (cached != null && now - cached.loadedAt < ttlNanos) return cached.fields;
+
+                generation = invalidations;
+            }
+
+            final Cached loaded = loader.load();
+            if (loaded == null) return null;
+
+            loaded.loadedAt = now;
+            synchronized (this) {
+                if (generation == invalidations && maxEntries > 0) entries.put(key, loaded);
+            }
+
+            return loaded.fields;
+        }
+
+        private synchronized void invalidate(Key key) {
+            invalidations++;
+            entries.remove(key);
+        }
+
+        private synchronized void invalidateInternalId(String realmId, String internalId) {
+            invalidations++;
+            entries.entrySet().removeIf(entry -> Objects.equals(entry.getKey().realmId, realmId)
+                    && internalId.equals(entry.getValue().internalId));
+        }
+    }
+
+    private static final class Key {
+        private final String realmId;
+        private final String id;
+        private final int hash;
+
+        private Key(String realmId, String id) {
+            this.realmId = realmId;
+            this.id = id;
+            this.hash = Objects.hash(realmId, id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return hash == that.hash && id.equals(that.id) && Objects.equals(realmId, that.realmId);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
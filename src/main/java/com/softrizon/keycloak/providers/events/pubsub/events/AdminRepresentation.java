@@ -0,0 +1,116 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The representation of an admin event as it is published, after applying the size cap.
+ * <p>
+ * Representations within the cap are published as they are. Larger ones are either truncated to the cap, or
+ * replaced by the SHA-256 digest of their UTF-8 bytes. In both cases their original size in bytes is published too.
+ */
+final class AdminRepresentation {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    });
+
+    final String text; // Null when replaced by the digest
+    final boolean raw; // Whether text looks like a JSON object or array, parsed before it is embedded
+    final boolean truncated;
+    final String digest;
+    final long originalBytes; // Only set when the cap applied
+
+    private AdminRepresentation(String text, boolean raw, boolean truncated, String digest, long originalBytes) {
+        this.text = text;
+        this.raw = raw;
+        this.truncated = truncated;
+        this.digest = digest;
+        this.originalBytes = originalBytes;
+    }
+
+    /**
+     * Applies the cap of {@code maxBytes}, zero for none, to {@code representation}. Returns {@code null} when there
+     * is no representation.
+     */
+    static AdminRepresentation of(String representation, EventMessageSerializer.RepresentationMode mode,
+                                  int maxBytes, EventMessageSerializer.RepresentationOverflow overflow) {
+        if (representation == null || representation.isEmpty()) return null;
+
+        final long bytes = maxBytes > 0 ? utf8Length(representation) : 0;
+        if (bytes <= maxBytes) {
+            return new AdminRepresentation(representation,
+                    mode == EventMessageSerializer.RepresentationMode.RAW && isJsonContainer(representation),
+                    false, null, 0);
+        }
+
+        // Truncated JSON is no longer valid JSON, so it is always embedded as a string
+        if (overflow == EventMessageSerializer.RepresentationOverflow.TRUNCATE) {
+            return new AdminRepresentation(truncate(representation, maxBytes), false, true, null, bytes);
+        }
+
+        return new AdminRepresentation(null, false, false, digest(representation), bytes);
+    }
+
+    private static boolean isJsonContainer(String value) {
+        // Keycloak serializes representations with Jackson, anything else set by extensions is published as a string
+        int start = 0;
+        int end = value.length() - 1;
+        while (start < end && Character.isWhitespace(value.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(value.charAt(end))) end--;
+        final char first = value.charAt(start);
+        final char last = value.charAt(end);
+
+        return (first == '{' && last == '}') || (first == '[' && last == ']');
+    }
+
+    private static long utf8Length(String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            length += utf8Length(value, i);
+            if (Character.isHighSurrogate(value.charAt(i)) && i + 1 < value.length()) i++;
+        }
+
+        return length;
+    }
+
+    private static int utf8Length(String value, int index) {
+        final char c = value.charAt(index);
+        if (c < 0x80) return 1;
+        if (c < 0x800) return 2;
+        if (Character.isHighSurrogate(c) && index + 1 < value.length()) return 4;
+
+        return 3;
+    }
+
+    private static String truncate(String value, int maxBytes) {
+        // Cut on a character boundary, never inside a surrogate pair
+        long length = 0;
+        int end = 0;
+        while (end < value.length()) {
+            final int charBytes = utf8Length(value, end);
+            if (length + charBytes > maxBytes) break;
+            length += charBytes;
+            end += charBytes == 4 ? 2 : 1;
+        }
+
+        return value.substring(0, end);
+    }
+
+    private static String digest(String value) {
+        final byte[] hash = DIGESTS.get().digest(value.getBytes(StandardCharsets.UTF_8));
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+
+        return "sha256:" + new String(hex);
+    }
+}
@@ -0,0 +1,81 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.keycloak.events.Event;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A summary of identical user events coalesced within the window of their pattern.
+ * <p>
+ * The first event of a window is published as usual and is kept as the representative of the summary, which only
+ * accounts for the events absorbed after it. Events are identical when they share the realm, client, ip address,
+ * type and error.
+ */
+public final class CoalescedEvents {
+
+    static final int MAX_SAMPLES = 5;
+
+    private final EventPattern pattern;
+    private final Event representative;
+    private final List<String> sampleEventIds = new ArrayList<>(MAX_SAMPLES);
+    private final List<String> sampleUserIds = new ArrayList<>(MAX_SAMPLES);
+    private long count;
+    private long firstTime;
+    private long lastTime;
+
+    CoalescedEvents(EventPattern pattern, Event representative) {
+        this.pattern = pattern;
+        this.representative = representative;
+    }
+
+    // Only called by the coalescer while it holds the bucket of this summary
+    void add(Event event) {
+        if (count == 0 || event.getTime() < firstTime) firstTime = event.getTime();
+        if (count == 0 || event.getTime() > lastTime) lastTime = event.getTime();
+        count++;
+        if (sampleEventIds.size() < MAX_SAMPLES && event.getId() != null) sampleEventIds.add(event.getId());
+        if (sampleUserIds.size() < MAX_SAMPLES && event.getUserId() != null
+                && !sampleUserIds.contains(event.getUserId())) {
+            sampleUserIds.add(event.getUserId());
+        }
+    }
+
+    public EventPattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns the first event of the window, the one published before coalescing started.
+     */
+    public Event getRepresentative() {
+        return representative;
+    }
+
+    /**
+     * Returns the number of events absorbed into this summary, not counting the representative.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    public List<String> getSampleEventIds() {
+        return Collections.unmodifiableList(sampleEventIds);
+    }
+
+    /**
+     * Returns up to {@value #MAX_SAMPLES} distinct ids of the users of the absorbed events.
+     */
+    public List<String> getSampleUserIds() {
+        return Collections.unmodifiableList(sampleUserIds);
+    }
+}
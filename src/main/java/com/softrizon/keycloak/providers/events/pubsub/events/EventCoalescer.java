@@ -0,0 +1,200 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Coalesces floods of identical user events, e.g. {@code LOGIN_ERROR} storms, into summaries.
+ * <p>
+ * The first event of a key is published as usual and opens a window of the pattern's length, the identical events
+ * that follow within it are absorbed and handed to the flush callback as one {@link CoalescedEvents} when the window
+ * closes. Windows are expired by a hashed time wheel ticking every {@link #TICK_MILLIS}, so the cost of a flush does
+ * not depend on the number of open windows. At most {@code maxKeys} windows are open at once, events of other keys
+ * are published as usual until windows close.
+ */
+public class EventCoalescer implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(EventCoalescer.class);
+
+    static final long TICK_MILLIS = 100;
+    static final int WHEEL_SIZE = 512;
+
+    private final int maxKeys;
+    private final Consumer<CoalescedEvents> flush;
+    private final Map<Key, CoalescedEvents> windows = new ConcurrentHashMap<>();
+    private final List<Queue<Deadline>> wheel;
+    private final long startedAt = System.nanoTime();
+    private final ScheduledExecutorService scheduler;
+    private long lastTick; // Only accessed by the scheduler thread
+
+    public EventCoalescer(int maxKeys, Consumer<CoalescedEvents> flush) {
+        this.maxKeys = maxKeys;
+        this.flush = Objects.requireNonNull(flush, String.format("%s: a flush callback is required.", PLUGIN_NAME));
+        wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PLUGIN_NAME + "-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns whether {@code event}, matched by {@code pattern}, was absorbed into an open window. When it was not,
+     * the event should be published as usual.
+     */
+    public boolean absorb(EventPattern pattern, Event event) {
+        if (pattern.coalesceWindowMs <= 0) return false;
+
+        final Key key = new Key(pattern, event);
+        final boolean[] absorbed = new boolean[1];
+        windows.compute(key, (k, window) -> {
+            if (window != null) {
+                window.add(event);
+                absorbed[0] = true;
+                return window;
+            }
+            // Fail open when too many windows are open, the event is simply not coalesced
+            if (windows.size() >= maxKeys) return null;
+
+            schedule(k, elapsedMillis() + pattern.coalesceWindowMs);
+            return new CoalescedEvents(pattern, event);
+        });
+
+        return absorbed[0];
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Summarize the open windows right away, rather than losing their counts
+        for (Key key : windows.keySet()) {
+            flush(key);
+        }
+        for (Queue<Deadline> slot : wheel) {
+            slot.clear();
+        }
+    }
+
+    private void schedule(Key key, long deadline) {
+        // Round up, the slot of a tick is only expired once the tick has fully elapsed
+        final long tick = (deadline + TICK_MILLIS - 1) / TICK_MILLIS;
+        wheel.get((int) (tick % WHEEL_SIZE)).offer(new Deadline(key, deadline));
+    }
+
+    void tick() {
+        try {
+            final long now = elapsedMillis();
+            final long currentTick = now / TICK_MILLIS;
+            // Catch up with ticks missed by a late run, a full turn visits every slot
+            final long firstTick = Math.max(lastTick + 1, currentTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                expire(wheel.get((int) (tick % WHEEL_SIZE)), now);
+            }
+            lastTick = currentTick;
+        } catch (Exception exception) {
+            logger.warnf(exception, "%s: failed to flush coalesced events.", PLUGIN_NAME);
+        }
+    }
+
+    private void expire(Queue<Deadline> slot, long now) {
+        // Windows longer than a turn of the wheel go around again until their deadline
+        for (int pending = slot.size(); pending > 0; pending--) {
+            final Deadline deadline = slot.poll();
+            if (deadline == null) break;
+            if (deadline.at <= now) {
+                flush(deadline.key);
+            } else {
+                slot.offer(deadline);
+            }
+        }
+    }
+
+    private void flush(Key key) {
+        // Removing the window first lets the next identical event open a new one, and publish as usual
+        final CoalescedEvents window = windows.remove(key);
+        if (window == null || window.getCount() == 0) return;
+
+        try {
+            flush.accept(window);
+        } catch (Exception exception) {
+            logger.warnf(exception, "%s: failed to publish %d coalesced event(s).", PLUGIN_NAME, window.getCount());
+        }
+    }
+
+    private long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    }
+
+    private static final class Deadline {
+        private final Key key;
+        private final long at;
+
+        private Deadline(Key key, long at) {
+            this.key = key;
+            this.at = at;
+        }
+    }
+
+    private static final class Key {
+        private final EventPattern pattern;
+        private final String realmId;
+        private final String clientId;
+        private final String ipAddress;
+        private final String type;
+        private final String error;
+        private final int hash;
+
+        private Key(EventPattern pattern, Event event) {
+            this.pattern = pattern;
+            this.realmId = event.getRealmId();
+            this.clientId = event.getClientId();
+            this.ipAddress = event.getIpAddress();
+            this.type = event.getType() != null ? event.getType().toString() : null;
+            this.error = event.getError();
+            this.hash = Objects.hash(pattern, realmId, clientId, ipAddress, type, error);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return hash == that.hash
+                    && pattern.equals(that.pattern)
+                    && Objects.equals(realmId, that.realmId)
+                    && Objects.equals(clientId, that.clientId)
+                    && Objects.equals(ipAddress, that.ipAddress)
+                    && Objects.equals(type, that.type)
+                    && Objects.equals(error, that.error);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Remembers the ids of recently published events, so an event Keycloak delivers more than once is only published once.
+ * <p>
+ * Ids are kept as 64-bit fingerprints in {@link #STRIPES} fixed-size open addressing tables, each guarded by its own
+ * lock, so the cache never allocates after construction and threads rarely wait for each other. An id is forgotten
+ * after the ttl, or earlier when its table is full and its slot is the oldest one a new id can take. A forgotten id is
+ * published again, consumers still get the {@code eventId} attribute to recognize it.
+ */
+public class EventDeduplicator {
+
+    static final int STRIPES = 16; // Power of two
+    static final int MAX_PROBES = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final LongAdder duplicateCount = new LongAdder();
+
+    public EventDeduplicator(int maxEntries, long ttlSeconds) {
+        if (maxEntries < 1 || ttlSeconds <= 0) {
+            throw new IllegalArgumentException(String.format(
+                    "%s: the dedup cache needs a positive number of entries and ttl.", PLUGIN_NAME));
+        }
+
+        // Keep the tables at most half full, and round up to a power of two so a slot is found by masking
+        final int stripeCapacity = Math.max(MAX_PROBES,
+                Integer.highestOneBit(Math.max(1, (maxEntries - 1) / STRIPES)) << 2);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Returns whether {@code eventId} was not seen within the ttl and remembers it. Events without an id are always
+     * considered new.
+     */
+    public boolean firstSeen(String eventId) {
+        if (eventId == null) return true;
+
+        final long fingerprint = fingerprint(eventId);
+        if (stripes[(int) (fingerprint >>> 60) & (STRIPES - 1)].add(fingerprint, System.nanoTime(), ttlNanos)) {
+            return true;
+        }
+
+        duplicateCount.increment();
+        return false;
+    }
+
+    /**
+     * Returns the number of duplicate events suppressed since start.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    static long fingerprint(String eventId) {
+        // FNV-1a over the UTF-16 code units, followed by a finalizer so that every bit depends on every character
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < eventId.length(); i++) {
+            hash = (hash ^ eventId.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash != 0 ? hash : 1; // Zero marks an empty slot
+    }
+
+    private static final class Stripe {
+        private final long[] fingerprints;
+        private final long[] seenAt;
+        private final int mask;
+
+        private Stripe(int capacity) {
+            fingerprints = new long[capacity];
+            seenAt = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        private synchronized boolean add(long fingerprint, long now, long ttlNanos) {
+            // Slots are overwritten but never emptied, so an empty slot ends the probe sequence of every fingerprint
+            int same = -1, expired = -1, empty = -1, oldest = -1;
+            long oldestAge = -1;
+            int slot = (int) fingerprint & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+                if (fingerprints[slot] == 0) {
+                    empty = slot;
+                    break;
+                }
+
+                final long age = now - seenAt[slot];
+                if (fingerprints[slot] == fingerprint) {
+                    if (age < ttlNanos) return false;
+
+                    same = slot;
+                    break;
+                }
+                if (age >= ttlNanos) {
+                    if (expired < 0) expired = slot;
+                } else if (age > oldestAge) {
+                    oldest = slot;
+                    oldestAge = age;
+                }
+            }
+
+            // Evict the oldest live id only when the probe sequence has no free slot left
+            final int target = same >= 0 ? same : expired >= 0 ? expired : empty >= 0 ? empty : oldest;
+            fingerprints[target] = fingerprint;
+            seenAt[target] = now;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import com.google.protobuf.ByteString;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.createEventName;
+
+/**
+ * The serialized bodies of the events of one committed transaction that share a topic, a format and an ordering key,
+ * published together as a single message.
+ * <p>
+ * Bodies are kept in commit order and an envelope holds at most its maximum number of bytes, unless a single body is
+ * larger. The attributes every event of the envelope shares are tracked as bodies are added, see
+ * {@link com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig#getMessageAttributes(EventEnvelope)}.
+ */
+public final class EventEnvelope {
+
+    // Upper bound of the bytes an envelope adds per body: a JSON separator, or the protobuf entry tags and lengths
+    static final int ENTRY_OVERHEAD_BYTES = 12;
+    static final int OVERHEAD_BYTES = 128;
+
+    private final String topic; // Null for the default topic
+    private final EventPattern.Format format;
+    private final int maxBytes;
+    private final List<ByteString> bodies = new ArrayList<>();
+    private final List<EventPattern.Who> whos = new ArrayList<>();
+    private int bytes = OVERHEAD_BYTES;
+
+    // Attributes shared by all events, null once two events differ
+    private String realmId;
+    private EventPattern.Who who;
+    private String event;
+    private String firstEventId;
+
+    public EventEnvelope(String topic, EventPattern.Format format, int maxBytes) {
+        this.topic = topic;
+        this.format = format;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns whether the envelope goes to the topic of {@code pattern} in its format.
+     */
+    public boolean accepts(EventPattern pattern) {
+        return format == pattern.format && Objects.equals(topic, pattern.topic);
+    }
+
+    /**
+     * Adds the body of {@code event}, or returns false when the envelope has no room left for it.
+     */
+    public boolean add(EventPattern pattern, Event event, ByteString body) {
+        if (!reserve(body)) return false;
+
+        add(EventPattern.Who.USER, event.getRealmId(), pattern.alias != null ? pattern.alias : createEventName(event),
+                event.getId(), body);
+        return true;
+    }
+
+    /**
+     * Adds the body of {@code event}, or returns false when the envelope has no room left for it.
+     */
+    public boolean add(EventPattern pattern, AdminEvent event, ByteString body) {
+        if (!reserve(body)) return false;
+
+        add(EventPattern.Who.ADMIN, event.getRealmId(), pattern.alias != null ? pattern.alias
+                : createEventName(event), event.getId(), body);
+        return true;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public EventPattern.Format getFormat() {
+        return format;
+    }
+
+    public int getCount() {
+        return bodies.size();
+    }
+
+    /**
+     * Returns the realm id of the events, null when they belong to several realms.
+     */
+    public String getRealmId() {
+        return realmId;
+    }
+
+    /**
+     * Returns whether the events are user or admin events, null when both are present.
+     */
+    public EventPattern.Who getWho() {
+        return who;
+    }
+
+    /**
+     * Returns the alias or the name the events share, null when they differ.
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    public String getFirstEventId() {
+        return firstEventId;
+    }
+
+    List<ByteString> getBodies() {
+        return bodies;
+    }
+
+    List<EventPattern.Who> getWhos() {
+        return whos;
+    }
+
+    private boolean reserve(ByteString body) {
+        final int size = body.size() + ENTRY_OVERHEAD_BYTES;
+        // A body larger than the maximum still gets an envelope of its own
+        if (!bodies.isEmpty() && (long) bytes + size > maxBytes) return false;
+
+        bytes += size;
+        return true;
+    }
+
+    private void add(EventPattern.Who who, String realmId, String event, String eventId, ByteString body) {
+        if (bodies.isEmpty()) {
+            this.who = who;
+            this.realmId = realmId;
+            this.event = event;
+            this.firstEventId = eventId;
+        } else {
+            if (this.who != who) this.who = null;
+            if (!Objects.equals(this.realmId, realmId)) this.realmId = null;
+            if (!Objects.equals(this.event, event)) this.event = null;
+        }
+
+        bodies.add(body);
+        whos.add(who);
+    }
+}
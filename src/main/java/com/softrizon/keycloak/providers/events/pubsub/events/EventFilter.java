@@ -0,0 +1,370 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * The predicates of an event pattern on the details, ip address and resource path of an event, compiled once when the
+ * pattern is parsed.
+ * <p>
+ * Every predicate must hold for an event to match. A predicate lists alternatives separated by {@code ;}, each either
+ * an exact value or a prefix ending with {@code *}, or CIDR blocks for the ip address. Evaluating a filter does not
+ * allocate, so events it rejects cost neither serialization nor publishing.
+ */
+public final class EventFilter {
+
+    static final String DETAIL_OPTION_PREFIX = "DETAIL.";
+    static final String IP_OPTION = "IP";
+    static final String PATH_OPTION = "PATH";
+
+    private static final ThreadLocal<int[]> IPV6_GROUPS = ThreadLocal.withInitial(() -> new int[8]);
+
+    private final String[] detailKeys;
+    private final ValueMatcher[] detailMatchers;
+    private final ValueMatcher resourcePath; // Null when the resource path is not filtered
+    private final CidrBlock[] ipBlocks; // Null when the ip address is not filtered
+    private final String description;
+
+    private EventFilter(String[] detailKeys, ValueMatcher[] detailMatchers, ValueMatcher resourcePath,
+                        CidrBlock[] ipBlocks, String description) {
+        this.detailKeys = detailKeys;
+        this.detailMatchers = detailMatchers;
+        this.resourcePath = resourcePath;
+        this.ipBlocks = ipBlocks;
+        this.description = description;
+    }
+
+    public boolean test(Event event) {
+        if (detailKeys.length > 0) {
+            final Map<String, String> details = event.getDetails();
+            if (details == null) return false;
+
+            for (int i = 0; i < detailKeys.length; i++) {
+                if (!detailMatchers[i].matches(details.get(detailKeys[i]))) return false;
+            }
+        }
+
+        return ipBlocks == null || matchesIp(event.getIpAddress());
+    }
+
+    public boolean test(AdminEvent event) {
+        if (resourcePath != null && !resourcePath.matches(event.getResourcePath())) return false;
+
+        return ipBlocks == null || matchesIp(event.getAuthDetails() != null ? event.getAuthDetails().getIpAddress()
+                : null);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof EventFilter && description.equals(((EventFilter) o).description);
+    }
+
+    @Override
+    public int hashCode() {
+        return description.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private boolean matchesIp(String ip) {
+        if (ip == null) return false;
+
+        if (ip.indexOf(':') < 0) {
+            final long address = parseIpv4(ip, 0, ip.length());
+            return address >= 0 && matchesIpv4((int) address);
+        }
+
+        final int[] groups = IPV6_GROUPS.get();
+        if (!parseIpv6(ip, groups)) return false;
+
+        // IPv4 clients of a dual stack listener show up as ::ffff:a.b.c.d
+        if (groups[0] == 0 && groups[1] == 0 && groups[2] == 0 && groups[3] == 0 && groups[4] == 0
+                && groups[5] == 0xffff && matchesIpv4(groups[6] << 16 | groups[7])) {
+            return true;
+        }
+
+        final long high = (long) groups[0] << 48 | (long) groups[1] << 32 | (long) groups[2] << 16 | groups[3];
+        final long low = (long) groups[4] << 48 | (long) groups[5] << 32 | (long) groups[6] << 16 | groups[7];
+        for (CidrBlock block : ipBlocks) {
+            if (block.ipv6 && (high & block.highMask) == block.high && (low & block.lowMask) == block.low) return true;
+        }
+
+        return false;
+    }
+
+    private boolean matchesIpv4(int address) {
+        for (CidrBlock block : ipBlocks) {
+            if (!block.ipv6 && (address & (int) block.lowMask) == (int) block.low) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the address as an unsigned 32-bit value, or -1 when {@code ip} is not a dotted IPv4 address.
+     */
+    static long parseIpv4(String ip, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int i = from;
+        while (i < to && octets < 4) {
+            int value = 0;
+            int digits = 0;
+            while (i < to && ip.charAt(i) >= '0' && ip.charAt(i) <= '9' && digits < 3) {
+                value = value * 10 + ip.charAt(i++) - '0';
+                digits++;
+            }
+            if (digits == 0 || value > 255) return -1;
+
+            address = address << 8 | value;
+            octets++;
+            if (octets < 4) {
+                if (i >= to || ip.charAt(i) != '.') return -1;
+                i++;
+            }
+        }
+
+        return octets == 4 && i == to ? address : -1;
+    }
+
+    /**
+     * Parses an IPv6 address, ignoring its zone, into 8 groups of 16 bits. Returns false when {@code ip} is not one.
+     */
+    static boolean parseIpv6(String ip, int[] groups) {
+        int end = ip.indexOf('%');
+        if (end < 0) end = ip.length();
+
+        int count = 0;
+        int gap = -1; // Index of the groups '::' stands for
+        int i = 0;
+        if (end >= 2 && ip.charAt(0) == ':' && ip.charAt(1) == ':') {
+            gap = 0;
+            i = 2;
+        } else if (end > 0 && ip.charAt(0) == ':') {
+            return false;
+        }
+
+        while (i < end) {
+            if (count == 8) return false;
+
+            int j = i;
+            boolean dotted = false;
+            while (j < end && ip.charAt(j) != ':') {
+                if (ip.charAt(j) == '.') dotted = true;
+                j++;
+            }
+            if (dotted) {
+                // An IPv4 address can only end the address, as its last two groups
+                final long address = j == end && count <= 6 ? parseIpv4(ip, i, end) : -1;
+                if (address < 0) return false;
+
+                groups[count++] = (int) (address >>> 16);
+                groups[count++] = (int) (address & 0xffff);
+                break;
+            }
+            if (j == i || j - i > 4) return false;
+
+            int value = 0;
+            for (int k = i; k < j; k++) {
+                final int digit = Character.digit(ip.charAt(k), 16);
+                if (digit < 0) return false;
+                value = value << 4 | digit;
+            }
+            groups[count++] = value;
+
+            i = j;
+            if (i < end) {
+                i++;
+                if (i < end && ip.charAt(i) == ':') {
+                    if (gap >= 0) return false;
+                    gap = count;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+
+        if (gap < 0) return count == 8;
+        if (count == 8) return false;
+
+        // Move the groups following '::' to the end, and zero the ones it stands for
+        final int tail = count - gap;
+        System.arraycopy(groups, gap, groups, 8 - tail, tail);
+        Arrays.fill(groups, gap, 8 - tail, 0);
+        return true;
+    }
+
+    /**
+     * Collects the predicate options of a pattern and compiles them into a filter.
+     */
+    static final class Builder {
+        private final List<String> detailKeys = new ArrayList<>();
+        private final List<ValueMatcher> detailMatchers = new ArrayList<>();
+        private final List<String> descriptions = new ArrayList<>();
+        private ValueMatcher resourcePath;
+        private CidrBlock[] ipBlocks;
+
+        /**
+         * Adds the predicate option {@code name}, or returns false when it is not a predicate option.
+         */
+        boolean add(String name, String value) {
+            final String upperName = name.toUpperCase(Locale.US);
+            if (upperName.startsWith(DETAIL_OPTION_PREFIX)) {
+                // Detail keys and values are case sensitive
+                final String key = name.substring(DETAIL_OPTION_PREFIX.length());
+                if (key.isEmpty() || detailKeys.contains(key)) {
+                    throw new IllegalArgumentException(String.format(Locale.US,
+                            "%s: event pattern option '%s' needs a detail key used once.", PLUGIN_NAME, name));
+                }
+                detailKeys.add(key);
+                detailMatchers.add(ValueMatcher.parse(name, value));
+            } else if (PATH_OPTION.equals(upperName)) {
+                if (resourcePath != null) throw duplicate(name);
+                resourcePath = ValueMatcher.parse(name, value);
+            } else if (IP_OPTION.equals(upperName)) {
+                if (ipBlocks != null) throw duplicate(name);
+                ipBlocks = Arrays.stream(alternatives(name, value)).map(block -> CidrBlock.parse(name, block))
+                        .toArray(CidrBlock[]::new);
+            } else {
+                return false;
+            }
+
+            descriptions.add(name + "=" + value);
+            return true;
+        }
+
+        boolean hasDetails() {
+            return !detailKeys.isEmpty();
+        }
+
+        boolean hasResourcePath() {
+            return resourcePath != null;
+        }
+
+        /**
+         * Returns the filter, or {@code null} when no predicate was added.
+         */
+        EventFilter build() {
+            if (descriptions.isEmpty()) return null;
+
+            return new EventFilter(detailKeys.toArray(new String[0]), detailMatchers.toArray(new ValueMatcher[0]),
+                    resourcePath, ipBlocks, String.join("|", descriptions));
+        }
+
+        private static IllegalArgumentException duplicate(String name) {
+            return new IllegalArgumentException(String.format(Locale.US,
+                    "%s: event pattern option '%s' can only be used once.", PLUGIN_NAME, name));
+        }
+    }
+
+    private static String[] alternatives(String name, String value) {
+        final String[] alternatives = Arrays.stream(value.split(";", -1)).map(String::trim).toArray(String[]::new);
+        if (value.trim().isEmpty() || Arrays.stream(alternatives).anyMatch(String::isEmpty)) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: event pattern option '%s' needs values separated by ';', but '%s' was found.", PLUGIN_NAME,
+                    name, value));
+        }
+
+        return alternatives;
+    }
+
+    /**
+     * Exact values, looked up in a set, and prefixes. A lone {@code *} matches any value that is present.
+     */
+    private static final class ValueMatcher {
+        private final Set<String> values;
+        private final String[] prefixes;
+
+        private ValueMatcher(Set<String> values, String[] prefixes) {
+            this.values = values;
+            this.prefixes = prefixes;
+        }
+
+        static ValueMatcher parse(String name, String value) {
+            final Set<String> values = new HashSet<>();
+            final List<String> prefixes = new ArrayList<>();
+            for (String alternative : alternatives(name, value)) {
+                if (alternative.endsWith("*")) prefixes.add(alternative.substring(0, alternative.length() - 1));
+                else values.add(alternative);
+            }
+
+            return new ValueMatcher(values, prefixes.toArray(new String[0]));
+        }
+
+        boolean matches(String value) {
+            if (value == null) return false;
+            if (!values.isEmpty() && values.contains(value)) return true;
+
+            for (String prefix : prefixes) {
+                if (value.startsWith(prefix)) return true;
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * An IPv4 block, kept in the low fields, or an IPv6 block.
+     */
+    private static final class CidrBlock {
+        private final boolean ipv6;
+        private final long high;
+        private final long highMask;
+        private final long low;
+        private final long lowMask;
+
+        private CidrBlock(boolean ipv6, long high, long highMask, long low, long lowMask) {
+            this.ipv6 = ipv6;
+            this.high = high & highMask;
+            this.highMask = highMask;
+            this.low = low & lowMask;
+            this.lowMask = lowMask;
+        }
+
+        static CidrBlock parse(String name, String block) {
+            final int slash = block.indexOf('/');
+            final String address = slash < 0 ? block : block.substring(0, slash);
+            final boolean ipv6 = address.indexOf(':') >= 0;
+            final int bits = ipv6 ? 128 : 32;
+            int prefixLength = bits;
+            try {
+                if (slash >= 0) prefixLength = Integer.parseInt(block.substring(slash + 1));
+            } catch (NumberFormatException exception) {
+                prefixLength = -1;
+            }
+
+            final int[] groups = new int[8];
+            final long ipv4 = ipv6 ? 0 : parseIpv4(address, 0, address.length());
+            if (prefixLength < 0 || prefixLength > bits || (ipv6 ? !parseIpv6(address, groups) : ipv4 < 0)) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: event pattern option '%s' needs CIDR blocks such as 10.0.0.0/8 or 2001:db8::/32, but "
+                                + "'%s' was found.", PLUGIN_NAME, name, block));
+            }
+
+            if (!ipv6) return new CidrBlock(false, 0, 0, ipv4, prefixLength == 0 ? 0 : -1L << (32 - prefixLength)
+                    & 0xffffffffL);
+
+            final long high = (long) groups[0] << 48 | (long) groups[1] << 32 | (long) groups[2] << 16 | groups[3];
+            final long low = (long) groups[4] << 48 | (long) groups[5] << 32 | (long) groups[6] << 16 | groups[7];
+            return new CidrBlock(true, high, mask(prefixLength), low, mask(prefixLength - 64));
+        }
+
+        private static long mask(int prefixLength) {
+            return prefixLength <= 0 ? 0 : prefixLength >= 64 ? -1L : -1L << (64 - prefixLength);
+        }
+    }
+}
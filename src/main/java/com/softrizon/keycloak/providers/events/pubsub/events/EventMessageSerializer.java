@@ -0,0 +1,359 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.protobuf.ByteString;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+import org.keycloak.events.admin.OperationType;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams user and admin events as JSON_API_V1 documents straight into Pub/Sub payload bytes.
+ * <p>
+ * The output is the same document Jackson produces for {@link UserEventMessage} and {@link AdminEventMessage}, but
+ * it is written field by field from the Keycloak event, so no message copy, object mapper or intermediate string is
+ * involved. PROTOBUF_V1 bodies are delegated to {@link EventProtobufEncoder}. A single instance is shared by all
+ * sessions and is thread safe.
+ * <p>
+ * Summaries of coalesced and shed user events are written the same way, see {@link EventCoalescer} and
+ * {@link EventRateLimiter}, and so are the envelopes of events published per transaction, see {@link EventEnvelope}.
+ * <p>
+ * Patterns can project the fields they publish, see {@link EventProjection}. Fields left out are skipped field by
+ * field, so they cost nothing to publish.
+ * <p>
+ * Admin event representations are only published when the realm includes them, capped to a configurable size. With
+ * {@link RepresentationMode#RAW} they are embedded as nested JSON rather than as an escaped JSON string, unless they do
+ * not parse as a single JSON object or array.
+ */
+public class EventMessageSerializer {
+
+    private static final String TYPE_PROPERTY = "_class";
+    private static final String USER_EVENT_TYPE_ID = UserEventMessage.class.getName();
+    private static final String ADMIN_EVENT_TYPE_ID = AdminEventMessage.class.getName();
+    private static final String COALESCED_EVENTS_TYPE_ID = CoalescedEvents.class.getName();
+    private static final String SHED_EVENTS_TYPE_ID = ShedEvents.class.getName();
+    private static final byte[] ENVELOPE_START = ("{\"" + TYPE_PROPERTY + "\":\"" + EventEnvelope.class.getName()
+            + "\",\"events\":[").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ENVELOPE_END = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ThreadLocal<ByteString.Output> buffers =
+            ThreadLocal.withInitial(() -> ByteString.newOutput(INITIAL_BUFFER_SIZE));
+    private final RepresentationMode representationMode;
+    private final int representationMaxBytes;
+    private final RepresentationOverflow representationOverflow;
+
+    public EventMessageSerializer() {
+        this(RepresentationMode.STRING, 0, RepresentationOverflow.TRUNCATE);
+    }
+
+    /**
+     * @param representationMaxBytes UTF-8 size above which representations are truncated or digested, zero for none
+     */
+    public EventMessageSerializer(RepresentationMode representationMode, int representationMaxBytes,
+                                  RepresentationOverflow representationOverflow) {
+        this.representationMode = representationMode;
+        this.representationMaxBytes = representationMaxBytes;
+        this.representationOverflow = representationOverflow;
+        jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        warmUp();
+    }
+
+    public ByteString serialize(Event event, EventPattern.Format format) throws IOException {
+        return serialize(event, format, null);
+    }
+
+    /**
+     * Serializes the fields of {@code event} its pattern projects, all of them when {@code projection} is null.
+     */
+    public ByteString serialize(Event event, EventPattern.Format format, EventProjection projection)
+            throws IOException {
+        final EventProjection fields = projection != null ? projection : EventProjection.ALL;
+
+        return format == EventPattern.Format.PROTOBUF_V1 ? EventProtobufEncoder.encode(event, fields)
+                : serialize(event, fields);
+    }
+
+    public ByteString serialize(AdminEvent event, EventPattern.Format format) throws IOException {
+        return serialize(event, format, true);
+    }
+
+    public ByteString serialize(AdminEvent event, EventPattern.Format format, boolean includeRepresentation)
+            throws IOException {
+        return serialize(event, format, includeRepresentation, null);
+    }
+
+    /**
+     * Serializes the fields of {@code event} its pattern projects, all of them when {@code projection} is null.
+     */
+    public ByteString serialize(AdminEvent event, EventPattern.Format format, boolean includeRepresentation,
+                                EventProjection projection) throws IOException {
+        final EventProjection fields = projection != null ? projection : EventProjection.ALL;
+        // A representation left out by the projection is neither copied, truncated nor digested
+        final AdminRepresentation representation = includeRepresentation
+                && fields.includes(EventProjection.Field.REPRESENTATION) ? AdminRepresentation.of(
+                event.getRepresentation(), representationMode, representationMaxBytes, representationOverflow) : null;
+
+        return format == EventPattern.Format.PROTOBUF_V1 ? EventProtobufEncoder.encode(event, fields, representation)
+                : serialize(event, fields, representation);
+    }
+
+    /**
+     * Serializes the summary of coalesced user events, in the format of their pattern.
+     */
+    public ByteString serialize(CoalescedEvents events) throws IOException {
+        if (events.getPattern().format == EventPattern.Format.PROTOBUF_V1) return EventProtobufEncoder.encode(events);
+
+        final Event event = events.getRepresentative();
+        ByteString.Output output = acquireBuffer();
+        try (JsonGenerator generator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField(TYPE_PROPERTY, COALESCED_EVENTS_TYPE_ID);
+            if (event.getType() != null) generator.writeStringField("type", event.getType().name());
+            writeStringField(generator, "realmId", event.getRealmId());
+            writeStringField(generator, "clientId", event.getClientId());
+            writeStringField(generator, "ipAddress", event.getIpAddress());
+            writeStringField(generator, "error", event.getError());
+            generator.writeNumberField("count", events.getCount());
+            generator.writeNumberField("firstTime", events.getFirstTime());
+            generator.writeNumberField("lastTime", events.getLastTime());
+            writeStringArray(generator, "sampleEventIds", events.getSampleEventIds());
+            writeStringArray(generator, "sampleUserIds", events.getSampleUserIds());
+            generator.writeEndObject();
+        }
+
+        return output.toByteString();
+    }
+
+    /**
+     * Serializes the summary of user events shed by a rate limit, in the format of their pattern.
+     */
+    public ByteString serialize(ShedEvents events) throws IOException {
+        if (events.getPattern().format == EventPattern.Format.PROTOBUF_V1) return EventProtobufEncoder.encode(events);
+
+        ByteString.Output output = acquireBuffer();
+        try (JsonGenerator generator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField(TYPE_PROPERTY, SHED_EVENTS_TYPE_ID);
+            writeStringField(generator, "realmId", events.getRealmId());
+            writeStringField(generator, "type", events.getEventType());
+            generator.writeNumberField("count", events.getCount());
+            generator.writeNumberField("fromTime", events.getFromTime());
+            generator.writeNumberField("toTime", events.getToTime());
+            generator.writeEndObject();
+        }
+
+        return output.toByteString();
+    }
+
+    /**
+     * Serializes the events of a transaction published together, as an array of the bodies already serialized in the
+     * format of the envelope.
+     */
+    public ByteString serialize(EventEnvelope envelope) throws IOException {
+        if (envelope.getFormat() == EventPattern.Format.PROTOBUF_V1) return EventProtobufEncoder.encode(envelope);
+
+        // Bodies are complete JSON documents, they are copied into the array as they are
+        ByteString.Output output = acquireBuffer();
+        output.write(ENVELOPE_START);
+        final List<ByteString> bodies = envelope.getBodies();
+        for (int i = 0; i < bodies.size(); i++) {
+            if (i > 0) output.write(',');
+            bodies.get(i).writeTo(output);
+        }
+        output.write(ENVELOPE_END);
+
+        return output.toByteString();
+    }
+
+    public ByteString serialize(Event event) throws IOException {
+        return serialize(event, EventProjection.ALL);
+    }
+
+    private ByteString serialize(Event event, EventProjection fields) throws IOException {
+        // Enrichment fields of the message copy the listener queued
+        final UserEventMessage message = event instanceof UserEventMessage ? (UserEventMessage) event : null;
+
+        ByteString.Output output = acquireBuffer();
+        try (JsonGenerator generator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField(TYPE_PROPERTY, USER_EVENT_TYPE_ID);
+            if (fields.includes(EventProjection.Field.ID)) writeStringField(generator, "id", event.getId());
+            if (fields.includes(EventProjection.Field.TIME)) generator.writeNumberField("time", event.getTime());
+            if (fields.includes(EventProjection.Field.TYPE) && event.getType() != null) {
+                generator.writeStringField("type", event.getType().name());
+            }
+            if (fields.includes(EventProjection.Field.REALM_ID)) {
+                writeStringField(generator, "realmId", event.getRealmId());
+            }
+            if (fields.includes(EventProjection.Field.CLIENT_ID)) {
+                writeStringField(generator, "clientId", event.getClientId());
+            }
+            if (fields.includes(EventProjection.Field.USER_ID)) {
+                writeStringField(generator, "userId", event.getUserId());
+            }
+            if (fields.includes(EventProjection.Field.SESSION_ID)) {
+                writeStringField(generator, "sessionId", event.getSessionId());
+            }
+            if (fields.includes(EventProjection.Field.IP_ADDRESS)) {
+                writeStringField(generator, "ipAddress", event.getIpAddress());
+            }
+            if (fields.includes(EventProjection.Field.ERROR)) writeStringField(generator, "error", event.getError());
+            if (fields.includes(EventProjection.Field.DETAILS)) {
+                writeStringMap(generator, "details", event.getDetails());
+            }
+            if (message != null && fields.includes(EventProjection.Field.USER)) {
+                writeStringMap(generator, "user", message.getUser());
+            }
+            if (message != null && fields.includes(EventProjection.Field.CLIENT)) {
+                writeStringMap(generator, "client", message.getClient());
+            }
+            generator.writeEndObject();
+        }
+
+        return output.toByteString();
+    }
+
+    public ByteString serialize(AdminEvent event) throws IOException {
+        return serialize(event, EventPattern.Format.JSON_API_V1, true);
+    }
+
+    private ByteString serialize(AdminEvent event, EventProjection fields, AdminRepresentation representation)
+            throws IOException {
+        ByteString.Output output = acquireBuffer();
+        try (JsonGenerator generator = jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeStringField(TYPE_PROPERTY, ADMIN_EVENT_TYPE_ID);
+            if (fields.includes(EventProjection.Field.ID)) writeStringField(generator, "id", event.getId());
+            if (fields.includes(EventProjection.Field.TIME)) generator.writeNumberField("time", event.getTime());
+            if (fields.includes(EventProjection.Field.REALM_ID)) {
+                writeStringField(generator, "realmId", event.getRealmId());
+            }
+            if (fields.includes(EventProjection.Field.AUTH_DETAILS)) {
+                writeAuthDetails(generator, event.getAuthDetails());
+            }
+            if (fields.includes(EventProjection.Field.RESOURCE_TYPE) && event.getResourceType() != null) {
+                generator.writeStringField("resourceType", event.getResourceType().name());
+            }
+            if (fields.includes(EventProjection.Field.OPERATION_TYPE) && event.getOperationType() != null) {
+                generator.writeStringField("operationType", event.getOperationType().name());
+            }
+            if (fields.includes(EventProjection.Field.RESOURCE_PATH)) {
+                writeStringField(generator, "resourcePath", event.getResourcePath());
+            }
+            writeRepresentation(generator, representation);
+            if (fields.includes(EventProjection.Field.ERROR)) writeStringField(generator, "error", event.getError());
+            if (fields.includes(EventProjection.Field.RESOURCE_TYPE_AS_STRING)) {
+                writeStringField(generator, "resourceTypeAsString", event.getResourceTypeAsString());
+            }
+            generator.writeEndObject();
+        }
+
+        return output.toByteString();
+    }
+
+    private ByteString.Output acquireBuffer() {
+        // The returned byte strings never share the current buffer, so it is safe to reuse it per thread
+        ByteString.Output output = buffers.get();
+        output.reset();
+        return output;
+    }
+
+    private void writeStringMap(JsonGenerator generator, String name, Map<String, String> map) throws IOException {
+        if (map == null) return;
+
+        generator.writeObjectFieldStart(name);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            generator.writeFieldName(entry.getKey());
+            if (entry.getValue() == null) generator.writeNull();
+            else generator.writeString(entry.getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeRepresentation(JsonGenerator generator, AdminRepresentation representation)
+            throws IOException {
+        if (representation == null) return;
+
+        if (representation.raw && isJsonValue(representation.text)) {
+            // Already JSON, written through as is instead of being escaped into a string
+            generator.writeFieldName("representation");
+            generator.writeRawValue(representation.text);
+        } else {
+            writeStringField(generator, "representation", representation.text);
+        }
+        if (representation.truncated) generator.writeBooleanField("representationTruncated", true);
+        writeStringField(generator, "representationDigest", representation.digest);
+        if (representation.originalBytes > 0) {
+            generator.writeNumberField("representationBytes", representation.originalBytes);
+        }
+    }
+
+    private boolean isJsonValue(String text) {
+        // Written as is, so anything but one complete JSON value would corrupt the whole message
+        try (JsonParser parser = jsonFactory.createParser(text)) {
+            if (parser.nextToken() == null) return false;
+            parser.skipChildren();
+            return parser.nextToken() == null;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private void writeAuthDetails(JsonGenerator generator, AuthDetails authDetails) throws IOException {
+        if (authDetails == null) return;
+
+        generator.writeObjectFieldStart("authDetails");
+        writeStringField(generator, "realmId", authDetails.getRealmId());
+        writeStringField(generator, "clientId", authDetails.getClientId());
+        writeStringField(generator, "userId", authDetails.getUserId());
+        writeStringField(generator, "ipAddress", authDetails.getIpAddress());
+        generator.writeEndObject();
+    }
+
+    private static void writeStringArray(JsonGenerator generator, String name, List<String> values)
+            throws IOException {
+        generator.writeArrayFieldStart(name);
+        for (String value : values) {
+            generator.writeString(value);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeStringField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) generator.writeStringField(name, value);
+    }
+
+    private void warmUp() {
+        // Exercise both code paths once so the first published events do not pay for class loading
+        Event event = new Event();
+        event.setType(EventType.LOGIN);
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setOperationType(OperationType.CREATE);
+        adminEvent.setRepresentation("{}");
+        try {
+            for (EventPattern.Format format : EventPattern.Format.values()) {
+                serialize(event, format);
+                serialize(adminEvent, format);
+            }
+        } catch (IOException exception) {
+            throw new IllegalStateException(exception);
+        } finally {
+            buffers.remove();
+        }
+    }
+
+    public enum RepresentationMode {STRING, RAW}
+
+    public enum RepresentationOverflow {TRUNCATE, DIGEST}
+}
@@ -1,5 +1,6 @@
 package com.softrizon.keycloak.providers.events.pubsub.events;
 
+import java.util.Locale;
 import java.util.Objects;
 import java.util.regex.Pattern;
 
@@ -8,11 +9,53 @@ public class EventPattern {
     public final Format format;
     public final Pattern pattern;
     public final String alias;
+    public final String topic; // Destination topic id, null for the default topic
+    public final long coalesceWindowMs; // Window identical events are coalesced in, zero when they are not
+    public final long rateLimit; // Events published per rate limit period, realm and event type, zero for no limit
+    public final long rateLimitPeriodMs;
+    public final EventFilter filter; // Predicates on details, ip address and resource path, null when there are none
+    public final EventProjection projection; // Message body fields to publish, null for all of them
 
-    public EventPattern(Format format, Pattern pattern, String alias) {
+    // Structured components of the pattern, a null value stands for the '*' wildcard
+    public final Who who;
+    public final String realmId;
+    public final Result result;
+    public final String target; // Client id for user events and resource type for admin events
+    public final Pattern targetPattern; // Client id regex, null when the client id is compared as it is
+    public final String type; // Event type for user events and operation type for admin events
+
+    public EventPattern(Format format, Pattern pattern, String alias, String topic, long coalesceWindowMs,
+                        long rateLimit, long rateLimitPeriodMs, EventFilter filter, EventProjection projection,
+                        Who who, String realmId, Result result, String target, Pattern targetPattern,
+                        String type) {
         this.format = format;
         this.pattern = pattern;
         this.alias = alias;
+        this.topic = topic;
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.rateLimit = rateLimit;
+        this.rateLimitPeriodMs = rateLimitPeriodMs;
+        this.filter = filter;
+        this.projection = projection;
+        this.who = who;
+        this.realmId = realmId;
+        this.result = result;
+        this.target = target;
+        this.targetPattern = targetPattern;
+        this.type = type;
+    }
+
+    public boolean matches(String realmId, Result result, String target, String type) {
+        return (this.result == null || this.result == result)
+                && (this.type == null || this.type.equals(type))
+                && (this.realmId == null || this.realmId.equalsIgnoreCase(realmId))
+                && (this.target == null || matchesTarget(target == null ? "" : target));
+    }
+
+    private boolean matchesTarget(String target) {
+        // Client id regexes are upper cased when parsed, so they match the upper cased client id
+        return targetPattern != null ? targetPattern.matcher(target.toUpperCase(Locale.US)).matches()
+                : this.target.equalsIgnoreCase(target);
     }
 
     @Override
@@ -23,12 +66,19 @@ public class EventPattern {
 
         return format == that.format
                 && pattern.pattern().equals(that.pattern.pattern())
-                && Objects.equals(alias, that.alias);
+                && Objects.equals(alias, that.alias)
+                && Objects.equals(topic, that.topic)
+                && coalesceWindowMs == that.coalesceWindowMs
+                && rateLimit == that.rateLimit
+                && rateLimitPeriodMs == that.rateLimitPeriodMs
+                && Objects.equals(filter, that.filter)
+                && Objects.equals(projection, that.projection);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(format, pattern.pattern(), alias);
+        return Objects.hash(format, pattern.pattern(), alias, topic, coalesceWindowMs, rateLimit, rateLimitPeriodMs,
+                filter, projection);
     }
 
     @Override
@@ -37,10 +87,15 @@ public class EventPattern {
                 "format=" + format +
                 ", pattern=" + pattern +
                 ", alias=" + alias +
+                ", topic=" + topic +
+                ", coalesceWindowMs=" + coalesceWindowMs +
+                ", rateLimit=" + rateLimit + "/" + rateLimitPeriodMs + "ms" +
+                ", filter=" + filter +
+                ", projection=" + projection +
                 '}';
     }
 
-    public enum Format {JSON_API_V1}
+    public enum Format {JSON_API_V1, PROTOBUF_V1}
 
     public enum Result {SUCCESS, ERROR}
 
@@ -0,0 +1,165 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches events against a compiled set of event patterns without building event names or running regexes.
+ * Patterns are indexed by their type component and evaluated in configuration order, so the first configured
+ * pattern that matches always wins. Decisions are memoized per (realm, result, target, type) tuple, and the
+ * predicates of the patterns they keep are evaluated against each event.
+ */
+public class EventPatternMatcher {
+
+    static final int MAX_MEMO_SIZE = 4096;
+
+    private final EventPattern.Who who;
+    private final List<EventPattern> patterns;
+    private final Map<String, EventPattern[]> candidatesByType;
+    private final EventPattern[] wildcardTypeCandidates;
+    private final Map<Key, Decision> memo = new ConcurrentHashMap<>();
+
+    EventPatternMatcher(EventPattern.Who who, List<EventPattern> patterns) {
+        this.who = who;
+        this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+
+        // Patterns with a wildcard type are candidates for every event type
+        wildcardTypeCandidates = patterns.stream()
+                .filter(pattern -> pattern.type == null)
+                .toArray(EventPattern[]::new);
+
+        // Each concrete type gets its own candidates, in configuration order
+        Set<String> types = new LinkedHashSet<>();
+        patterns.stream().filter(pattern -> pattern.type != null).forEach(pattern -> types.add(pattern.type));
+        candidatesByType = new HashMap<>();
+        for (String type : types) {
+            EventPattern[] candidates = patterns.stream()
+                    .filter(pattern -> pattern.type == null || pattern.type.equals(type))
+                    .toArray(EventPattern[]::new);
+            candidatesByType.put(type, candidates);
+        }
+    }
+
+    public EventPattern.Who getWho() {
+        return who;
+    }
+
+    public List<EventPattern> getPatterns() {
+        return patterns;
+    }
+
+    public Optional<EventPattern> match(Event event) {
+        final Decision decision = decide(event.getRealmId(), processResult(event.getError()), event.getClientId(),
+                event.getType().name());
+        for (int i = 0; i < decision.candidates.length; i++) {
+            final EventFilter filter = decision.candidates[i].filter;
+            if (filter == null || filter.test(event)) return decision.results.get(i);
+        }
+
+        return Optional.empty();
+    }
+
+    public Optional<EventPattern> match(AdminEvent event) {
+        final Decision decision = decide(event.getRealmId(), processResult(event.getError()),
+                event.getResourceTypeAsString(), event.getOperationType().name());
+        for (int i = 0; i < decision.candidates.length; i++) {
+            final EventFilter filter = decision.candidates[i].filter;
+            if (filter == null || filter.test(event)) return decision.results.get(i);
+        }
+
+        return Optional.empty();
+    }
+
+    private Decision decide(String realmId, EventPattern.Result result, String target, String type) {
+        if (patterns.isEmpty()) return Decision.NONE;
+
+        final Key key = new Key(realmId, result, target, type);
+        Decision decision = memo.get(key);
+        if (decision != null) return decision;
+
+        // Patterns with predicates depend on more than the key, keep them up to the first one without
+        final List<EventPattern> matching = new ArrayList<>();
+        for (EventPattern candidate : candidatesByType.getOrDefault(type, wildcardTypeCandidates)) {
+            if (candidate.matches(realmId, result, target, type)) {
+                matching.add(candidate);
+                if (candidate.filter == null) break;
+            }
+        }
+        decision = matching.isEmpty() ? Decision.NONE : new Decision(matching.toArray(new EventPattern[0]));
+
+        // Keep the memo bounded, realms and client ids are not under our control
+        if (memo.size() >= MAX_MEMO_SIZE) memo.clear();
+        memo.put(key, decision);
+
+        return decision;
+    }
+
+    private static EventPattern.Result processResult(String error) {
+        return error == null ? EventPattern.Result.SUCCESS : EventPattern.Result.ERROR;
+    }
+
+    /**
+     * The patterns an event with a given key may match, in configuration order, with their results built once.
+     */
+    private static final class Decision {
+        private static final Decision NONE = new Decision(new EventPattern[0]);
+
+        private final EventPattern[] candidates;
+        private final List<Optional<EventPattern>> results;
+
+        private Decision(EventPattern[] candidates) {
+            this.candidates = candidates;
+            results = new ArrayList<>(candidates.length);
+            for (EventPattern candidate : candidates) {
+                results.add(Optional.of(candidate));
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String realmId;
+        private final EventPattern.Result result;
+        private final String target;
+        private final String type;
+        private final int hash;
+
+        private Key(String realmId, EventPattern.Result result, String target, String type) {
+            this.realmId = realmId;
+            this.result = result;
+            this.target = target;
+            this.type = type;
+            // Same as Objects.hash, without its varargs array
+            this.hash = ((31 * (31 + Objects.hashCode(realmId)) + Objects.hashCode(result)) * 31
+                    + Objects.hashCode(target)) * 31 + Objects.hashCode(type);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+
+            return hash == that.hash
+                    && result == that.result
+                    && Objects.equals(type, that.type)
+                    && Objects.equals(realmId, that.realmId)
+                    && Objects.equals(target, that.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
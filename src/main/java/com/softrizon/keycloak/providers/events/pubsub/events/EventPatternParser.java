@@ -5,10 +5,14 @@ import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
 import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
@@ -17,10 +21,18 @@ public class EventPatternParser {
 
     private final Pattern REALM_ID_PATTERN = Pattern.compile("[^:/?#\\[\\]@!$&()*+,;=']+");
     private final Pattern CLIENT_ID_PATTERN = Pattern.compile(".*");
+    private final Pattern REGEX_METACHARACTERS_PATTERN = Pattern.compile("[.*+?^$()\\[\\]{}\\\\]");
     private final Pattern RESULT_PATTERN = Pattern.compile("(?:SUCCESS|ERROR)");
     private final Pattern ENUM_TYPE_PATTERN = Pattern.compile("[0-9a-zA-Z_]+");
     private final Pattern SEMI_COLON_PATTERN = Pattern.compile(":");
     private final Pattern PIPE_PATTERN = Pattern.compile("\\|");
+    private final Pattern TOPIC_ID_PATTERN = Pattern.compile("[a-zA-Z][-a-zA-Z0-9._~%+]{2,254}");
+    private final Pattern DURATION_PATTERN = Pattern.compile("([0-9]{1,9})(MS|S|M)");
+    private final Pattern RATE_PATTERN = Pattern.compile("([0-9]{1,9})/(S|M)");
+
+    static final String COALESCE_OPTION = "COALESCE";
+    static final long MAX_COALESCE_WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+    static final String RATE_OPTION = "RATE";
 
     private final List<String> formats;
     private final List<String> results;
@@ -51,14 +63,65 @@ public class EventPatternParser {
         // Require pattern
         Objects.requireNonNull(pattern, String.format("%s: event pattern is required.", PLUGIN_NAME));
 
-        // Extract the alias if it exists
+        // Extract the alias, the format and the topic if they exist, e.g. USER:*:*:*:*|ALIAS|PROTOBUF_V1|topic-id.
+        // Empty components keep their default, e.g. USER:*:*:*:*|||topic-id. Options follow as key=value components
         String alias = null;
+        String topic = null;
+        long coalesceWindowMs = 0;
+        long rateLimit = 0;
+        long rateLimitPeriodMs = 0;
+        final EventFilter.Builder filter = new EventFilter.Builder();
+        String projectionOption = null;
+        String projectionValue = null;
         String originalPattern = pattern;
         String[] components = Arrays.stream(pattern.split(PIPE_PATTERN.pattern()))
                 .toArray(String[]::new);
-        if (components.length == 2) {
+        if (components.length >= 2) {
             originalPattern = components[0];
-            alias = components[1].toUpperCase(Locale.US);
+            alias = components[1].trim().isEmpty() ? null : components[1].trim().toUpperCase(Locale.US);
+        }
+        if (components.length >= 3 && !components[2].trim().isEmpty()) {
+            format = components[2].trim().toUpperCase(Locale.US);
+        }
+        if (components.length >= 4 && !components[3].trim().isEmpty()) {
+            // Topic ids are case sensitive
+            topic = components[3].trim();
+            if (!TOPIC_ID_PATTERN.matcher(topic).matches()) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: event topic id '%s' is invalid.", PLUGIN_NAME, topic));
+            }
+        }
+        for (int i = 4; i < components.length; i++) {
+            final String[] option = components[i].split("=", 2);
+            // Predicate options keep their case, detail keys and values are case sensitive
+            if (option.length == 2 && filter.add(option[0].trim(), option[1].trim())) continue;
+
+            final String name = option[0].trim().toUpperCase(Locale.US);
+            final String value = option.length == 2 ? option[1].trim().toUpperCase(Locale.US) : "";
+            if (COALESCE_OPTION.equals(name)) {
+                coalesceWindowMs = parseDuration(name, value);
+            } else if (RATE_OPTION.equals(name)) {
+                final Matcher matcher = RATE_PATTERN.matcher(value);
+                if (!matcher.matches() || Long.parseLong(matcher.group(1)) == 0) {
+                    throw new IllegalArgumentException(String.format(Locale.US,
+                            "%s: event pattern option 'rate' should be a positive rate such as 100/s or 1000/m, but "
+                                    + "'%s' was found.", PLUGIN_NAME, value.toLowerCase(Locale.US)));
+                }
+                rateLimit = Long.parseLong(matcher.group(1));
+                rateLimitPeriodMs = "S".equals(matcher.group(2)) ? TimeUnit.SECONDS.toMillis(1)
+                        : TimeUnit.MINUTES.toMillis(1);
+            } else if (EventProjection.INCLUDE_OPTION.equals(name) || EventProjection.EXCLUDE_OPTION.equals(name)) {
+                if (projectionOption != null) {
+                    throw new IllegalArgumentException(String.format(Locale.US,
+                            "%s: event pattern can have a single 'include' or 'exclude' option.", PLUGIN_NAME));
+                }
+                // Field names are validated once the kind of event is known
+                projectionOption = name;
+                projectionValue = option.length == 2 ? option[1].trim() : "";
+            } else {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: event pattern option '%s' is unknown.", PLUGIN_NAME, components[i].trim()));
+            }
         }
 
         // Extract the components
@@ -87,6 +150,8 @@ public class EventPatternParser {
                     PLUGIN_NAME, whos, parts[0]));
         }
         EventPattern.Who who = EventPattern.Who.valueOf(parts[0]);
+        final EventProjection projection = projectionOption != null
+                ? EventProjection.parse(who, projectionOption, projectionValue) : null;
 
         // Make sure the realm id is checked
         String realmId = extractRealmId(parts);
@@ -99,9 +164,20 @@ public class EventPatternParser {
 
         // Create event pattern
         Pattern newPattern = null;
+        Pattern clientIdPattern = null;
+        EventPattern.Result newResult = "*".equals(parts[2]) ? null : EventPattern.Result.valueOf(result);
 
         // Process admin parameters
         if (who == EventPattern.Who.ADMIN) {
+            if (coalesceWindowMs > 0 || rateLimit > 0) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: admin events are audit relevant and cannot be coalesced or rate limited.", PLUGIN_NAME));
+            }
+            if (filter.hasDetails()) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: admin events have no details, use the 'path' option instead.", PLUGIN_NAME));
+            }
+
             // Extract the resource type
             String resourceType = extractResourceType(parts);
             Objects.requireNonNull(resourceType, String.format("%s: admin event resource type '%s' is invalid.",
@@ -116,6 +192,11 @@ public class EventPatternParser {
             newPattern = Pattern.compile(String.format(Locale.US, "%s:%s:%s:%s:%s",
                     who, realmId, result, resourceType, operationType));
         } else if (who == EventPattern.Who.USER) { // Process user parameters
+            if (filter.hasResourcePath()) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: user events have no resource path, use the 'detail.<key>' option instead.", PLUGIN_NAME));
+            }
+
             // Extract the client id
             String clientId = extractClientId(parts);
             Objects.requireNonNull(clientId, String.format("%s: event client id '%s' is invalid.",
@@ -126,12 +207,56 @@ public class EventPatternParser {
             Objects.requireNonNull(eventType, String.format("%s: user event type '%s' is invalid.",
                     PLUGIN_NAME, parts[4]));
 
+            // Client ids with regex metacharacters, e.g. account-.*, are matched as a regex
+            if (!"*".equals(parts[3]) && REGEX_METACHARACTERS_PATTERN.matcher(parts[3]).find()) {
+                clientIdPattern = compileClientId(parts[3]);
+            }
+
             // Event example: USER:<REALM_ID>:<RESULT>:<CLIENT_ID>:<EVENT_TYPE>
             newPattern = Pattern.compile(String.format(Locale.US, "%s:%s:%s:%s:%s",
                     who, realmId, result, clientId, eventType));
         }
 
-        return new EventPattern(newFormat, newPattern, alias);
+        return new EventPattern(newFormat, newPattern, alias, topic, coalesceWindowMs, rateLimit, rateLimitPeriodMs,
+                filter.build(), projection, who, wildcardToNull(parts[1]), newResult, wildcardToNull(parts[3]),
+                clientIdPattern, wildcardToNull(parts[4]));
+    }
+
+    public EventPatternMatcher compile(EventPattern.Who who, Collection<EventPattern> patterns) {
+        Objects.requireNonNull(who, String.format("%s: event pattern 'who' is required.", PLUGIN_NAME));
+        Objects.requireNonNull(patterns, String.format("%s: event patterns are required.", PLUGIN_NAME));
+
+        // Keep the configured order, the first pattern that matches an event wins
+        List<EventPattern> ordered = patterns.stream()
+                .filter(pattern -> pattern.who == who)
+                .collect(Collectors.toList());
+
+        return new EventPatternMatcher(who, ordered);
+    }
+
+    private long parseDuration(String option, String value) {
+        // Durations are given in milliseconds, seconds or minutes, e.g. 500ms, 10s or 1m
+        final Matcher matcher = DURATION_PATTERN.matcher(value);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: event pattern option '%s' should be a duration such as 500ms, 10s or 1m, but '%s' was found.",
+                    PLUGIN_NAME, option.toLowerCase(Locale.US), value.toLowerCase(Locale.US)));
+        }
+
+        final long amount = Long.parseLong(matcher.group(1));
+        final long millis = "MS".equals(matcher.group(2)) ? amount
+                : "S".equals(matcher.group(2)) ? TimeUnit.SECONDS.toMillis(amount) : TimeUnit.MINUTES.toMillis(amount);
+        if (millis <= 0 || millis > MAX_COALESCE_WINDOW_MS) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: event pattern option '%s' should be between 1ms and 1h, but '%s' was found.",
+                    PLUGIN_NAME, option.toLowerCase(Locale.US), value.toLowerCase(Locale.US)));
+        }
+
+        return millis;
+    }
+
+    private String wildcardToNull(String part) {
+        return "*".equals(part) ? null : part;
     }
 
     private String extractRealmId(String[] parts) {
@@ -172,6 +297,16 @@ public class EventPatternParser {
         return null;
     }
 
+    private Pattern compileClientId(String clientId) {
+        try {
+            return Pattern.compile(clientId);
+        } catch (PatternSyntaxException exception) {
+            throw new IllegalArgumentException(String.format(Locale.US,
+                    "%s: event client id '%s' is not a valid regex: %s", PLUGIN_NAME, clientId,
+                    exception.getDescription()));
+        }
+    }
+
     private String extractEventType(String[] parts) {
         List<String> eventTypes = Arrays.stream(EventType.values())
                 .map(Enum::toString)
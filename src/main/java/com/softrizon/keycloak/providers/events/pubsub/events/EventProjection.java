@@ -0,0 +1,128 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * The message body fields a pattern publishes, given by an include or an exclude list and compiled once into a bit
+ * set. Fields left out are neither copied nor encoded, in either format. Message attributes and the summaries of
+ * coalesced and shed events are not projected.
+ */
+public final class EventProjection {
+
+    static final String INCLUDE_OPTION = "INCLUDE";
+    static final String EXCLUDE_OPTION = "EXCLUDE";
+
+    /**
+     * Every field, used when a pattern has no projection.
+     */
+    static final EventProjection ALL = new EventProjection(-1L, "all");
+
+    private static final Set<Field> USER_FIELDS = EnumSet.range(Field.ID, Field.CLIENT);
+    private static final Set<Field> ADMIN_FIELDS = EnumSet.of(Field.ID, Field.TIME, Field.REALM_ID,
+            Field.AUTH_DETAILS, Field.RESOURCE_TYPE, Field.OPERATION_TYPE, Field.RESOURCE_PATH, Field.REPRESENTATION,
+            Field.ERROR, Field.RESOURCE_TYPE_AS_STRING);
+
+    private final long mask;
+    private final String description;
+
+    private EventProjection(long mask, String description) {
+        this.mask = mask;
+        this.description = description;
+    }
+
+    /**
+     * Compiles the {@code include} or {@code exclude} option {@code value}, a list of field names separated by
+     * {@code ;}, for the events of {@code who}.
+     */
+    static EventProjection parse(EventPattern.Who who, String option, String value) {
+        final Set<Field> available = who == EventPattern.Who.ADMIN ? ADMIN_FIELDS : USER_FIELDS;
+        final Set<Field> listed = EnumSet.noneOf(Field.class);
+        for (String name : value.split(";")) {
+            final Field field = Field.of(name.trim());
+            if (field == null || !available.contains(field)) {
+                throw new IllegalArgumentException(String.format(Locale.US,
+                        "%s: event pattern option '%s' should list %s event fields among %s separated by ';', but "
+                                + "'%s' was found.", PLUGIN_NAME, option.toLowerCase(Locale.US),
+                        who.name().toLowerCase(Locale.US), available.stream().map(Field::toString)
+                                .collect(Collectors.toList()), name.trim()));
+            }
+            listed.add(field);
+        }
+
+        final Set<Field> fields = EnumSet.copyOf(available);
+        if (EXCLUDE_OPTION.equals(option.toUpperCase(Locale.US))) fields.removeAll(listed);
+        else fields.retainAll(listed);
+
+        long mask = 0;
+        for (Field field : fields) {
+            mask |= 1L << field.ordinal();
+        }
+
+        return new EventProjection(mask, fields.stream().map(Field::toString).collect(Collectors.joining(";")));
+    }
+
+    public boolean includes(Field field) {
+        return (mask & 1L << field.ordinal()) != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof EventProjection && mask == ((EventProjection) o).mask;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(mask);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Message body fields, named as in the JSON_API_V1 body. User event fields come first.
+     */
+    public enum Field {
+        ID("id"),
+        TIME("time"),
+        TYPE("type"),
+        REALM_ID("realmId"),
+        CLIENT_ID("clientId"),
+        USER_ID("userId"),
+        SESSION_ID("sessionId"),
+        IP_ADDRESS("ipAddress"),
+        ERROR("error"),
+        DETAILS("details"),
+        USER("user"),
+        CLIENT("client"),
+        AUTH_DETAILS("authDetails"),
+        RESOURCE_TYPE("resourceType"),
+        OPERATION_TYPE("operationType"),
+        RESOURCE_PATH("resourcePath"),
+        REPRESENTATION("representation"),
+        RESOURCE_TYPE_AS_STRING("resourceTypeAsString");
+
+        private final String fieldName;
+
+        Field(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+        private static Field of(String fieldName) {
+            return Arrays.stream(values()).filter(field -> field.fieldName.equalsIgnoreCase(fieldName)).findFirst()
+                    .orElse(null);
+        }
+
+        @Override
+        public String toString() {
+            return fieldName;
+        }
+    }
+}
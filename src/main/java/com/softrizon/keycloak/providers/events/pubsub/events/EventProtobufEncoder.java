@@ -0,0 +1,345 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes user and admin events, summaries of coalesced or shed user events, and envelopes of the events of a
+ * transaction as PROTOBUF_V1 bodies, following {@code proto/keycloak_events_v1.proto}.
+ * <p>
+ * Fields are written straight from the Keycloak event, so no generated message classes are needed. The exact body
+ * size is computed first and the body is encoded into a single array that the returned byte string wraps.
+ */
+final class EventProtobufEncoder {
+
+    // UserEvent field numbers
+    static final int USER_ID = 1;
+    static final int USER_TIME = 2;
+    static final int USER_TYPE = 3;
+    static final int USER_REALM_ID = 4;
+    static final int USER_CLIENT_ID = 5;
+    static final int USER_USER_ID = 6;
+    static final int USER_SESSION_ID = 7;
+    static final int USER_IP_ADDRESS = 8;
+    static final int USER_ERROR = 9;
+    static final int USER_DETAILS = 10;
+    static final int USER_USER = 11;
+    static final int USER_CLIENT = 12;
+
+    // AdminEvent field numbers
+    static final int ADMIN_ID = 1;
+    static final int ADMIN_TIME = 2;
+    static final int ADMIN_REALM_ID = 3;
+    static final int ADMIN_AUTH_DETAILS = 4;
+    static final int ADMIN_RESOURCE_TYPE = 5;
+    static final int ADMIN_OPERATION_TYPE = 6;
+    static final int ADMIN_RESOURCE_PATH = 7;
+    static final int ADMIN_REPRESENTATION = 8;
+    static final int ADMIN_ERROR = 9;
+    static final int ADMIN_REPRESENTATION_TRUNCATED = 10;
+    static final int ADMIN_REPRESENTATION_DIGEST = 11;
+    static final int ADMIN_REPRESENTATION_BYTES = 12;
+
+    // CoalescedUserEvents field numbers
+    static final int COALESCED_TYPE = 1;
+    static final int COALESCED_REALM_ID = 2;
+    static final int COALESCED_CLIENT_ID = 3;
+    static final int COALESCED_IP_ADDRESS = 4;
+    static final int COALESCED_ERROR = 5;
+    static final int COALESCED_COUNT = 6;
+    static final int COALESCED_FIRST_TIME = 7;
+    static final int COALESCED_LAST_TIME = 8;
+    static final int COALESCED_SAMPLE_EVENT_IDS = 9;
+    static final int COALESCED_SAMPLE_USER_IDS = 10;
+
+    // ShedUserEvents field numbers
+    static final int SHED_REALM_ID = 1;
+    static final int SHED_TYPE = 2;
+    static final int SHED_COUNT = 3;
+    static final int SHED_FROM_TIME = 4;
+    static final int SHED_TO_TIME = 5;
+
+    // EventEnvelope and EnvelopeEntry field numbers
+    static final int ENVELOPE_EVENTS = 1;
+    static final int ENTRY_USER_EVENT = 1;
+    static final int ENTRY_ADMIN_EVENT = 2;
+
+    // AuthDetails and map entry field numbers
+    static final int AUTH_REALM_ID = 1;
+    static final int AUTH_CLIENT_ID = 2;
+    static final int AUTH_USER_ID = 3;
+    static final int AUTH_IP_ADDRESS = 4;
+    static final int ENTRY_KEY = 1;
+    static final int ENTRY_VALUE = 2;
+
+    private EventProtobufEncoder() {
+    }
+
+    static ByteString encode(Event event, EventProjection fields) throws IOException {
+        // Fields left out by the projection are nulled out here, and skipped like absent ones below
+        final String id = fields.includes(EventProjection.Field.ID) ? event.getId() : null;
+        final long time = fields.includes(EventProjection.Field.TIME) ? event.getTime() : 0;
+        final String type = fields.includes(EventProjection.Field.TYPE) && event.getType() != null
+                ? event.getType().name() : null;
+        final String realmId = fields.includes(EventProjection.Field.REALM_ID) ? event.getRealmId() : null;
+        final String clientId = fields.includes(EventProjection.Field.CLIENT_ID) ? event.getClientId() : null;
+        final String userId = fields.includes(EventProjection.Field.USER_ID) ? event.getUserId() : null;
+        final String sessionId = fields.includes(EventProjection.Field.SESSION_ID) ? event.getSessionId() : null;
+        final String ipAddress = fields.includes(EventProjection.Field.IP_ADDRESS) ? event.getIpAddress() : null;
+        final String error = fields.includes(EventProjection.Field.ERROR) ? event.getError() : null;
+        final Map<String, String> details = fields.includes(EventProjection.Field.DETAILS) ? event.getDetails() : null;
+
+        int size = stringSize(USER_ID, id)
+                + timeSize(USER_TIME, time)
+                + stringSize(USER_TYPE, type)
+                + stringSize(USER_REALM_ID, realmId)
+                + stringSize(USER_CLIENT_ID, clientId)
+                + stringSize(USER_USER_ID, userId)
+                + stringSize(USER_SESSION_ID, sessionId)
+                + stringSize(USER_IP_ADDRESS, ipAddress)
+                + stringSize(USER_ERROR, error)
+                + mapSize(USER_DETAILS, details);
+        // Enrichment fields are carried by the message copy the listener queued, see UserEventMessage
+        final UserEventMessage message = event instanceof UserEventMessage ? (UserEventMessage) event : null;
+        final Map<String, String> user = message != null && fields.includes(EventProjection.Field.USER)
+                ? message.getUser() : null;
+        final Map<String, String> client = message != null && fields.includes(EventProjection.Field.CLIENT)
+                ? message.getClient() : null;
+        size += mapSize(USER_USER, user) + mapSize(USER_CLIENT, client);
+
+        final byte[] bytes = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writeString(output, USER_ID, id);
+        writeTime(output, USER_TIME, time);
+        writeString(output, USER_TYPE, type);
+        writeString(output, USER_REALM_ID, realmId);
+        writeString(output, USER_CLIENT_ID, clientId);
+        writeString(output, USER_USER_ID, userId);
+        writeString(output, USER_SESSION_ID, sessionId);
+        writeString(output, USER_IP_ADDRESS, ipAddress);
+        writeString(output, USER_ERROR, error);
+        writeMap(output, USER_DETAILS, details);
+        writeMap(output, USER_USER, user);
+        writeMap(output, USER_CLIENT, client);
+        output.checkNoSpaceLeft();
+
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    static ByteString encode(AdminEvent event, EventProjection fields, AdminRepresentation representation)
+            throws IOException {
+        // Fields left out by the projection are nulled out here, and skipped like absent ones below
+        final String id = fields.includes(EventProjection.Field.ID) ? event.getId() : null;
+        final long time = fields.includes(EventProjection.Field.TIME) ? event.getTime() : 0;
+        final String realmId = fields.includes(EventProjection.Field.REALM_ID) ? event.getRealmId() : null;
+        final AuthDetails authDetails = fields.includes(EventProjection.Field.AUTH_DETAILS)
+                ? event.getAuthDetails() : null;
+        final String resourceType = fields.includes(EventProjection.Field.RESOURCE_TYPE)
+                ? event.getResourceTypeAsString() : null;
+        final String operationType = fields.includes(EventProjection.Field.OPERATION_TYPE)
+                && event.getOperationType() != null ? event.getOperationType().name() : null;
+        final String resourcePath = fields.includes(EventProjection.Field.RESOURCE_PATH)
+                ? event.getResourcePath() : null;
+        final String error = fields.includes(EventProjection.Field.ERROR) ? event.getError() : null;
+        final int authDetailsSize = authDetails != null ? authDetailsSize(authDetails) : 0;
+
+        int size = stringSize(ADMIN_ID, id)
+                + timeSize(ADMIN_TIME, time)
+                + stringSize(ADMIN_REALM_ID, realmId)
+                + stringSize(ADMIN_RESOURCE_TYPE, resourceType)
+                + stringSize(ADMIN_OPERATION_TYPE, operationType)
+                + stringSize(ADMIN_RESOURCE_PATH, resourcePath)
+                + stringSize(ADMIN_ERROR, error);
+        if (authDetails != null) size += messageSize(ADMIN_AUTH_DETAILS, authDetailsSize);
+        if (representation != null) size += representationSize(representation);
+
+        final byte[] bytes = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writeString(output, ADMIN_ID, id);
+        writeTime(output, ADMIN_TIME, time);
+        writeString(output, ADMIN_REALM_ID, realmId);
+        if (authDetails != null) {
+            output.writeTag(ADMIN_AUTH_DETAILS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(authDetailsSize);
+            writeString(output, AUTH_REALM_ID, authDetails.getRealmId());
+            writeString(output, AUTH_CLIENT_ID, authDetails.getClientId());
+            writeString(output, AUTH_USER_ID, authDetails.getUserId());
+            writeString(output, AUTH_IP_ADDRESS, authDetails.getIpAddress());
+        }
+        writeString(output, ADMIN_RESOURCE_TYPE, resourceType);
+        writeString(output, ADMIN_OPERATION_TYPE, operationType);
+        writeString(output, ADMIN_RESOURCE_PATH, resourcePath);
+        if (representation != null) {
+            writeString(output, ADMIN_REPRESENTATION, representation.text);
+            if (representation.truncated) output.writeBool(ADMIN_REPRESENTATION_TRUNCATED, true);
+            writeString(output, ADMIN_REPRESENTATION_DIGEST, representation.digest);
+            writeTime(output, ADMIN_REPRESENTATION_BYTES, representation.originalBytes);
+        }
+        writeString(output, ADMIN_ERROR, error);
+        output.checkNoSpaceLeft();
+
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    static ByteString encode(CoalescedEvents events) throws IOException {
+        final Event event = events.getRepresentative();
+        final String type = event.getType() != null ? event.getType().name() : null;
+
+        int size = stringSize(COALESCED_TYPE, type)
+                + stringSize(COALESCED_REALM_ID, event.getRealmId())
+                + stringSize(COALESCED_CLIENT_ID, event.getClientId())
+                + stringSize(COALESCED_IP_ADDRESS, event.getIpAddress())
+                + stringSize(COALESCED_ERROR, event.getError())
+                + timeSize(COALESCED_COUNT, events.getCount())
+                + timeSize(COALESCED_FIRST_TIME, events.getFirstTime())
+                + timeSize(COALESCED_LAST_TIME, events.getLastTime());
+        for (String eventId : events.getSampleEventIds()) {
+            size += stringSize(COALESCED_SAMPLE_EVENT_IDS, eventId);
+        }
+        for (String userId : events.getSampleUserIds()) {
+            size += stringSize(COALESCED_SAMPLE_USER_IDS, userId);
+        }
+
+        final byte[] bytes = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writeString(output, COALESCED_TYPE, type);
+        writeString(output, COALESCED_REALM_ID, event.getRealmId());
+        writeString(output, COALESCED_CLIENT_ID, event.getClientId());
+        writeString(output, COALESCED_IP_ADDRESS, event.getIpAddress());
+        writeString(output, COALESCED_ERROR, event.getError());
+        writeTime(output, COALESCED_COUNT, events.getCount());
+        writeTime(output, COALESCED_FIRST_TIME, events.getFirstTime());
+        writeTime(output, COALESCED_LAST_TIME, events.getLastTime());
+        for (String eventId : events.getSampleEventIds()) {
+            writeString(output, COALESCED_SAMPLE_EVENT_IDS, eventId);
+        }
+        for (String userId : events.getSampleUserIds()) {
+            writeString(output, COALESCED_SAMPLE_USER_IDS, userId);
+        }
+        output.checkNoSpaceLeft();
+
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    static ByteString encode(ShedEvents events) throws IOException {
+        final int size = stringSize(SHED_REALM_ID, events.getRealmId())
+                + stringSize(SHED_TYPE, events.getEventType())
+                + timeSize(SHED_COUNT, events.getCount())
+                + timeSize(SHED_FROM_TIME, events.getFromTime())
+                + timeSize(SHED_TO_TIME, events.getToTime());
+
+        final byte[] bytes = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        writeString(output, SHED_REALM_ID, events.getRealmId());
+        writeString(output, SHED_TYPE, events.getEventType());
+        writeTime(output, SHED_COUNT, events.getCount());
+        writeTime(output, SHED_FROM_TIME, events.getFromTime());
+        writeTime(output, SHED_TO_TIME, events.getToTime());
+        output.checkNoSpaceLeft();
+
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    static ByteString encode(EventEnvelope envelope) throws IOException {
+        // Bodies are complete UserEvent and AdminEvent messages, they are embedded as they are
+        final List<ByteString> bodies = envelope.getBodies();
+        final List<EventPattern.Who> whos = envelope.getWhos();
+        int size = 0;
+        for (int i = 0; i < bodies.size(); i++) {
+            size += messageSize(ENVELOPE_EVENTS, messageSize(entryField(whos.get(i)), bodies.get(i).size()));
+        }
+
+        final byte[] bytes = new byte[size];
+        final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+        for (int i = 0; i < bodies.size(); i++) {
+            final ByteString body = bodies.get(i);
+            final int field = entryField(whos.get(i));
+            output.writeTag(ENVELOPE_EVENTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(messageSize(field, body.size()));
+            output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(body.size());
+            output.writeRawBytes(body);
+        }
+        output.checkNoSpaceLeft();
+
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    private static int entryField(EventPattern.Who who) {
+        return who == EventPattern.Who.ADMIN ? ENTRY_ADMIN_EVENT : ENTRY_USER_EVENT;
+    }
+
+    private static int representationSize(AdminRepresentation representation) {
+        final int truncatedSize = representation.truncated
+                ? CodedOutputStream.computeBoolSize(ADMIN_REPRESENTATION_TRUNCATED, true) : 0;
+
+        return stringSize(ADMIN_REPRESENTATION, representation.text)
+                + truncatedSize
+                + stringSize(ADMIN_REPRESENTATION_DIGEST, representation.digest)
+                + timeSize(ADMIN_REPRESENTATION_BYTES, representation.originalBytes);
+    }
+
+    private static int authDetailsSize(AuthDetails authDetails) {
+        return stringSize(AUTH_REALM_ID, authDetails.getRealmId())
+                + stringSize(AUTH_CLIENT_ID, authDetails.getClientId())
+                + stringSize(AUTH_USER_ID, authDetails.getUserId())
+                + stringSize(AUTH_IP_ADDRESS, authDetails.getIpAddress());
+    }
+
+    private static int mapSize(int field, Map<String, String> map) {
+        if (map == null) return 0;
+
+        int size = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            size += messageSize(field, entrySize(entry));
+        }
+
+        return size;
+    }
+
+    private static void writeMap(CodedOutputStream output, int field, Map<String, String> map) throws IOException {
+        if (map == null) return;
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(entrySize(entry));
+            writeString(output, ENTRY_KEY, entry.getKey());
+            writeString(output, ENTRY_VALUE, entry.getValue());
+        }
+    }
+
+    private static int entrySize(Map.Entry<String, String> entry) {
+        return stringSize(ENTRY_KEY, entry.getKey()) + stringSize(ENTRY_VALUE, entry.getValue());
+    }
+
+    private static int messageSize(int field, int size) {
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    // Proto3 leaves default values off the wire, so null and empty strings and a zero time are skipped alike
+
+    private static int stringSize(int field, String value) {
+        return value == null || value.isEmpty() ? 0 : CodedOutputStream.computeStringSize(field, value);
+    }
+
+    private static int timeSize(int field, long value) {
+        return value == 0 ? 0 : CodedOutputStream.computeInt64Size(field, value);
+    }
+
+    private static void writeString(CodedOutputStream output, int field, String value) throws IOException {
+        if (value != null && !value.isEmpty()) output.writeString(field, value);
+    }
+
+    private static void writeTime(CodedOutputStream output, int field, long value) throws IOException {
+        if (value != 0) output.writeInt64(field, value);
+    }
+}
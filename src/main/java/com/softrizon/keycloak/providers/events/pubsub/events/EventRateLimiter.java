@@ -0,0 +1,169 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Sheds the user events of a realm and event type above the rate limit of their pattern, so a noisy realm cannot use
+ * up the Pub/Sub quota of all of them.
+ * <p>
+ * Every pattern, realm and event type gets its own token bucket holding up to one period worth of events. Buckets are
+ * kept in a concurrent map, whose bins stripe contention between keys, and each one is a single timestamp advanced by
+ * compare-and-set (the generic cell rate algorithm), so acquiring a token never locks. Admin events and the exempt
+ * event types are never shed. Shed events are counted and handed to the summary callback once per summary interval,
+ * one {@link ShedEvents} per bucket that shed any.
+ */
+public class EventRateLimiter implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(EventRateLimiter.class);
+
+    private final Set<String> exemptEventTypes;
+    private final Consumer<ShedEvents> summary;
+    private final Map<Key, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder shedCount = new LongAdder();
+    private final ScheduledExecutorService scheduler;
+    private long summarizedAt = System.currentTimeMillis(); // Only accessed by the scheduler thread
+
+    public EventRateLimiter(Set<String> exemptEventTypes, long summaryIntervalSeconds, Consumer<ShedEvents> summary) {
+        this.exemptEventTypes = Objects.requireNonNull(exemptEventTypes);
+        this.summary = Objects.requireNonNull(summary,
+                String.format("%s: a summary callback is required.", PLUGIN_NAME));
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PLUGIN_NAME + "-rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::summarize, summaryIntervalSeconds, summaryIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns whether {@code event}, matched by {@code pattern}, is within the rate limit and should be published.
+     */
+    public boolean tryAcquire(EventPattern pattern, Event event) {
+        if (pattern.rateLimit <= 0 || pattern.who != EventPattern.Who.USER) return true;
+
+        final String eventType = event.getType() != null ? event.getType().name() : null;
+        if (eventType != null && exemptEventTypes.contains(eventType)) return true;
+
+        final Key key = new Key(pattern, event.getRealmId(), eventType);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) bucket = buckets.computeIfAbsent(key, k -> new Bucket(pattern));
+
+        if (bucket.tryAcquire(System.nanoTime())) return true;
+
+        bucket.shed.increment();
+        shedCount.increment();
+        return false;
+    }
+
+    /**
+     * Returns the number of events shed since start.
+     */
+    public long getShedCount() {
+        return shedCount.sum();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Report what was shed since the last summary, rather than losing it
+        summarize();
+    }
+
+    synchronized void summarize() {
+        final long fromTime = summarizedAt;
+        final long toTime = summarizedAt = System.currentTimeMillis();
+        final long now = System.nanoTime();
+        for (Map.Entry<Key, Bucket> entry : buckets.entrySet()) {
+            final Key key = entry.getKey();
+            final Bucket bucket = entry.getValue();
+            final long shed = bucket.shed.sumThenReset();
+            if (shed > 0) {
+                try {
+                    summary.accept(new ShedEvents(key.pattern, key.realmId, key.eventType, shed, fromTime, toTime));
+                } catch (Exception exception) {
+                    logger.warnf(exception, "%s: failed to publish the summary of %d shed event(s).", PLUGIN_NAME,
+                            shed);
+                }
+            } else if (bucket.isIdle(now)) {
+                // A full bucket behaves like a missing one, drop it so realms that went quiet use no memory
+                buckets.remove(key, bucket);
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private final long intervalNanos; // Time it takes to earn one token
+        private final long capacityNanos; // Time it takes to fill the bucket
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+        private final LongAdder shed = new LongAdder();
+
+        private Bucket(EventPattern pattern) {
+            capacityNanos = TimeUnit.MILLISECONDS.toNanos(pattern.rateLimitPeriodMs);
+            intervalNanos = Math.max(1, capacityNanos / pattern.rateLimit);
+        }
+
+        private boolean tryAcquire(long now) {
+            while (true) {
+                final long arrival = theoreticalArrival.get();
+                final long next = (arrival - now > 0 ? arrival : now) + intervalNanos;
+                if (next - now > capacityNanos) return false;
+                if (theoreticalArrival.compareAndSet(arrival, next)) return true;
+            }
+        }
+
+        private boolean isIdle(long now) {
+            return now - theoreticalArrival.get() >= 0;
+        }
+    }
+
+    private static final class Key {
+        private final EventPattern pattern;
+        private final String realmId;
+        private final String eventType;
+        private final int hash;
+
+        private Key(EventPattern pattern, String realmId, String eventType) {
+            this.pattern = pattern;
+            this.realmId = realmId;
+            this.eventType = eventType;
+            this.hash = Objects.hash(pattern, realmId, eventType);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return hash == that.hash
+                    && pattern.equals(that.pattern)
+                    && Objects.equals(realmId, that.realmId)
+                    && Objects.equals(eventType, that.eventType);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+/**
+ * Derives Pub/Sub ordering keys from Keycloak events, so that consumers receive the events of one key in order.
+ */
+public final class OrderingKeys {
+
+    private OrderingKeys() {
+    }
+
+    /**
+     * Returns the ordering key of a user event, or {@code null} when it has none.
+     */
+    public static String derive(Source source, Event event) {
+        switch (source) {
+            case USER_ID:
+                return emptyToNull(event.getUserId());
+            case REALM_ID:
+                return emptyToNull(event.getRealmId());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the ordering key of an admin event, or {@code null} when it has none. With {@link Source#USER_ID} only
+     * operations on users are keyed, by the id of the user, so they share keys with the user's own events.
+     */
+    public static String derive(Source source, AdminEvent event) {
+        switch (source) {
+            case USER_ID:
+                return ResourcePaths.resourceId(event.getResourcePath(), ResourcePaths.USERS_PREFIX);
+            case REALM_ID:
+                return emptyToNull(event.getRealmId());
+            case RESOURCE_PATH:
+                return emptyToNull(event.getResourcePath());
+            default:
+                return null;
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    public enum Source {NONE, USER_ID, REALM_ID, RESOURCE_PATH}
+}
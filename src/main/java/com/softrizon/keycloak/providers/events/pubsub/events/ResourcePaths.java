@@ -0,0 +1,26 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+/**
+ * Extracts the ids of the resources named by admin event resource paths.
+ */
+public final class ResourcePaths {
+
+    public static final String USERS_PREFIX = "users/";
+    public static final String CLIENTS_PREFIX = "clients/";
+
+    private ResourcePaths() {
+    }
+
+    /**
+     * Returns the id following {@code prefix}, or {@code null} when {@code resourcePath} does not start with it.
+     */
+    public static String resourceId(String resourcePath, String prefix) {
+        // Resource paths look like users/<id> or users/<id>/role-mappings/...
+        if (resourcePath == null || !resourcePath.startsWith(prefix)) return null;
+
+        final int end = resourcePath.indexOf('/', prefix.length());
+        final String id = end < 0 ? resourcePath.substring(prefix.length())
+                : resourcePath.substring(prefix.length(), end);
+        return id.isEmpty() ? null : id;
+    }
+}
@@ -0,0 +1,53 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+/**
+ * A summary of the user events of one realm and event type shed by the rate limit of their pattern.
+ */
+public final class ShedEvents {
+
+    private final EventPattern pattern;
+    private final String realmId;
+    private final String eventType;
+    private final long count;
+    private final long fromTime;
+    private final long toTime;
+
+    ShedEvents(EventPattern pattern, String realmId, String eventType, long count, long fromTime, long toTime) {
+        this.pattern = pattern;
+        this.realmId = realmId;
+        this.eventType = eventType;
+        this.count = count;
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    public EventPattern getPattern() {
+        return pattern;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the start of the summarized interval, in milliseconds since the epoch.
+     */
+    public long getFromTime() {
+        return fromTime;
+    }
+
+    /**
+     * Returns the end of the summarized interval, in milliseconds since the epoch.
+     */
+    public long getToTime() {
+        return toTime;
+    }
+}
@@ -1,11 +1,13 @@
 package com.softrizon.keycloak.providers.events.pubsub.events;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import org.keycloak.events.Event;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.io.Serializable;
+import java.util.Map;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 @XmlRootElement
@@ -14,6 +16,10 @@ public class UserEventMessage extends Event implements Serializable {
 
     private static final long serialVersionUID = -1L;
 
+    // Enrichment fields, only set when enrichment is configured and the user or client was found
+    private Map<String, String> user;
+    private Map<String, String> client;
+
     public static UserEventMessage create(Event event) {
         UserEventMessage message = new UserEventMessage();
         message.setId(event.getId());
@@ -29,4 +35,22 @@ public class UserEventMessage extends Event implements Serializable {
 
         return message;
     }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Map<String, String> getUser() {
+        return user;
+    }
+
+    public void setUser(Map<String, String> user) {
+        this.user = user;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Map<String, String> getClient() {
+        return client;
+    }
+
+    public void setClient(Map<String, String> client) {
+        this.client = client;
+    }
 }
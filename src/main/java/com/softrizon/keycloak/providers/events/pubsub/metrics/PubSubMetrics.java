@@ -0,0 +1,175 @@
+package com.softrizon.keycloak.providers.events.pubsub.metrics;
+
+import com.softrizon.keycloak.providers.events.pubsub.dispatch.EventDispatcher;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventDeduplicator;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventPattern;
+import com.softrizon.keycloak.providers.events.pubsub.events.EventRateLimiter;
+import com.softrizon.keycloak.providers.events.pubsub.spool.MessageSpool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot path instrumentation, published through the Micrometer registry of the Keycloak Quarkus distribution.
+ * <p>
+ * All meters are resolved once (per pattern for the matched event counters), so recording never allocates meter ids.
+ * Use {@link #isAvailable()} before creating an instance, Micrometer is not on the class path of every distribution.
+ */
+public class PubSubMetrics {
+
+    static final String PREFIX = "keycloak.pubsub.";
+    static final String NO_ALIAS = "none";
+
+    private final MeterRegistry registry;
+    private final Counter[] ignoredEvents; // Indexed by who and result
+    private final Map<EventPattern, Counter[]> matchedEvents = new ConcurrentHashMap<>();
+    private final Counter publishSuccesses;
+    private final Counter publishFailures;
+    private final Counter publisherCreations;
+    private final Timer commitToAckLatency;
+    private final DistributionSummary messageSize;
+    private final AtomicLong outstandingMessages = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    public PubSubMetrics() {
+        this(Metrics.globalRegistry);
+    }
+
+    public PubSubMetrics(MeterRegistry registry) {
+        this.registry = registry;
+
+        ignoredEvents = new Counter[EventPattern.Who.values().length * EventPattern.Result.values().length];
+        for (EventPattern.Who who : EventPattern.Who.values()) {
+            for (EventPattern.Result result : EventPattern.Result.values()) {
+                ignoredEvents[index(who, result)] = eventCounter("ignored", who, result, NO_ALIAS);
+            }
+        }
+
+        publishSuccesses = Counter.builder(PREFIX + "publish")
+                .description("Messages acknowledged or rejected by Pub/Sub")
+                .tag("outcome", "success")
+                .register(registry);
+        publishFailures = Counter.builder(PREFIX + "publish")
+                .description("Messages acknowledged or rejected by Pub/Sub")
+                .tag("outcome", "failure")
+                .register(registry);
+        publisherCreations = Counter.builder(PREFIX + "publisher.created")
+                .description("Pub/Sub publishers created, including rebuilds")
+                .register(registry);
+        commitToAckLatency = Timer.builder(PREFIX + "publish.latency")
+                .description("Time from the Keycloak transaction commit to the Pub/Sub acknowledgement")
+                .publishPercentileHistogram()
+                .register(registry);
+        messageSize = DistributionSummary.builder(PREFIX + "message.size")
+                .description("Serialized message body size")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder(PREFIX + "outstanding.messages", outstandingMessages, AtomicLong::get)
+                .description("Messages handed to the publisher and not yet acknowledged")
+                .register(registry);
+        Gauge.builder(PREFIX + "outstanding.bytes", outstandingBytes, AtomicLong::get)
+                .description("Bytes handed to the publisher and not yet acknowledged")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public static boolean isAvailable() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, PubSubMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError exception) {
+            return false;
+        }
+    }
+
+    public void registerDispatcher(EventDispatcher dispatcher) {
+        Gauge.builder(PREFIX + "queue.size", dispatcher, EventDispatcher::getQueueSize)
+                .description("Events waiting for an asynchronous worker")
+                .register(registry);
+        Gauge.builder(PREFIX + "queue.dropped", dispatcher, EventDispatcher::getDroppedCount)
+                .description("Events dropped because the asynchronous queue was full")
+                .register(registry);
+    }
+
+    public void registerSpool(MessageSpool spool) {
+        Gauge.builder(PREFIX + "spool.size", spool, MessageSpool::getTotalBytes)
+                .description("Bytes of undelivered messages waiting in the spool")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    public void registerRateLimiter(EventRateLimiter rateLimiter) {
+        FunctionCounter.builder(PREFIX + "events.shed", rateLimiter, EventRateLimiter::getShedCount)
+                .description("User events shed by the rate limit of their pattern")
+                .register(registry);
+    }
+
+    public void registerDeduplicator(EventDeduplicator deduplicator) {
+        FunctionCounter.builder(PREFIX + "events.duplicate", deduplicator, EventDeduplicator::getDuplicateCount)
+                .description("Events not published again because their id was seen within the dedup ttl")
+                .register(registry);
+    }
+
+    public void recordEvent(EventPattern.Who who, String error, EventPattern pattern) {
+        final EventPattern.Result result = error == null ? EventPattern.Result.SUCCESS : EventPattern.Result.ERROR;
+        if (pattern == null) {
+            ignoredEvents[index(who, result)].increment();
+            return;
+        }
+
+        Counter[] counters = matchedEvents.computeIfAbsent(pattern, key -> {
+            String alias = key.alias != null ? key.alias : NO_ALIAS;
+            Counter[] byResult = new Counter[EventPattern.Result.values().length];
+            for (EventPattern.Result value : EventPattern.Result.values()) {
+                byResult[value.ordinal()] = eventCounter("matched", who, value, alias);
+            }
+            return byResult;
+        });
+        counters[result.ordinal()].increment();
+    }
+
+    public void recordPublishStarted(int bytes) {
+        messageSize.record(bytes);
+        outstandingMessages.incrementAndGet();
+        outstandingBytes.addAndGet(bytes);
+    }
+
+    public void recordPublishCompleted(int bytes, long committedAtNanos, boolean success) {
+        outstandingMessages.decrementAndGet();
+        outstandingBytes.addAndGet(-bytes);
+        if (success) {
+            publishSuccesses.increment();
+            commitToAckLatency.record(System.nanoTime() - committedAtNanos, TimeUnit.NANOSECONDS);
+        } else {
+            publishFailures.increment();
+        }
+    }
+
+    public void recordPublisherCreated() {
+        publisherCreations.increment();
+    }
+
+    private Counter eventCounter(String outcome, EventPattern.Who who, EventPattern.Result result, String alias) {
+        return Counter.builder(PREFIX + "events")
+                .description("Keycloak events seen by the listener")
+                .tag("outcome", outcome)
+                .tag("who", who.toString())
+                .tag("result", result.toString())
+                .tag("alias", alias)
+                .register(registry);
+    }
+
+    private static int index(EventPattern.Who who, EventPattern.Result result) {
+        return who.ordinal() * EventPattern.Result.values().length + result.ordinal();
+    }
+}
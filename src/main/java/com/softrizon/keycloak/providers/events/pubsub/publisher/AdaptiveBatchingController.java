@@ -0,0 +1,123 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Tunes the publisher batching thresholds from the observed event rate and publish latency.
+ * <p>
+ * When traffic is quiet the configured (low latency) thresholds are used. Under load the batch delay grows with a
+ * fraction of the publish round trip and the element and byte thresholds grow so that a batch fills up within that
+ * delay. The publisher settings are immutable, so a change is handed to a listener that rebuilds the publisher; only
+ * changes of at least {@link #CHANGE_FACTOR} are applied to avoid flapping.
+ */
+public class AdaptiveBatchingController implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(AdaptiveBatchingController.class);
+
+    static final long SAMPLE_PERIOD_SECONDS = 10;
+    static final double CHANGE_FACTOR = 2.0;
+    static final double LATENCY_FRACTION = 0.1;
+    static final long MAX_REQUEST_BYTES = 9L * 1024 * 1024; // Pub/Sub accepts publish requests up to 10MB
+
+    private final PubSubConfig config;
+    private final Consumer<BatchingSettings> listener;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder publishedMessages = new LongAdder();
+    private final LongAdder publishedBytes = new LongAdder();
+    private final LongAdder acknowledgedMessages = new LongAdder();
+    private final LongAdder acknowledgedLatencyNanos = new LongAdder();
+
+    private volatile long elementCountThreshold;
+    private volatile long delayThresholdMs;
+
+    public AdaptiveBatchingController(PubSubConfig config, Consumer<BatchingSettings> listener) {
+        this.config = config;
+        this.listener = listener;
+        elementCountThreshold = config.getBatchElementCountThreshold();
+        delayThresholdMs = config.getBatchDelayThresholdMs();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PLUGIN_NAME + "-batching");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::adjust, SAMPLE_PERIOD_SECONDS, SAMPLE_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void recordPublish(long bytes) {
+        publishedMessages.increment();
+        publishedBytes.add(bytes);
+    }
+
+    public void recordAck(long latencyNanos) {
+        acknowledgedMessages.increment();
+        acknowledgedLatencyNanos.add(latencyNanos);
+    }
+
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        scheduler.schedule(task, delay, unit);
+    }
+
+    void adjust() {
+        try {
+            final long messages = publishedMessages.sumThenReset();
+            final long bytes = publishedBytes.sumThenReset();
+            final long acks = acknowledgedMessages.sumThenReset();
+            final long latencyNanos = acknowledgedLatencyNanos.sumThenReset();
+
+            final long minElementCount = config.getBatchElementCountThreshold();
+            final long minDelayMs = config.getBatchDelayThresholdMs();
+            final double rate = (double) messages / SAMPLE_PERIOD_SECONDS;
+            final double latencyMs = acks > 0 ? latencyNanos / (double) acks / 1_000_000 : 0;
+
+            // Batch for a fraction of the publish round trip and size batches to what arrives meanwhile
+            long newDelayMs = clamp(Math.round(latencyMs * LATENCY_FRACTION), minDelayMs,
+                    Math.max(minDelayMs, config.getAdaptiveBatchMaxDelayMs()));
+            long newElementCount = Math.round(rate * newDelayMs / 1000);
+            long newRequestBytes = config.getBatchRequestByteThreshold();
+            if (newElementCount < minElementCount) { // Quiet traffic, keep the latency low
+                newDelayMs = minDelayMs;
+                newElementCount = minElementCount;
+            } else {
+                newElementCount = clamp(newElementCount, minElementCount,
+                        Math.max(minElementCount, config.getAdaptiveBatchMaxElementCount()));
+                long averageBytes = messages > 0 ? bytes / messages : 0;
+                newRequestBytes = clamp(newElementCount * averageBytes, newRequestBytes,
+                        Math.max(newRequestBytes, MAX_REQUEST_BYTES));
+            }
+
+            if (!changed(elementCountThreshold, newElementCount) && !changed(delayThresholdMs, newDelayMs)) return;
+
+            logger.infof("%s: adapting publisher batching to %d messages, %d bytes and %d ms (%.1f msg/s, %.1f ms).",
+                    PLUGIN_NAME, newElementCount, newRequestBytes, newDelayMs, rate, latencyMs);
+            elementCountThreshold = newElementCount;
+            delayThresholdMs = newDelayMs;
+            listener.accept(config.createBatchingSettings(newElementCount, newRequestBytes, newDelayMs));
+        } catch (Exception exception) {
+            logger.warnf(exception, "%s: failed to adapt the publisher batching settings.", PLUGIN_NAME);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private static boolean changed(long current, long next) {
+        if (current == 0 || next == 0) return current != next;
+        return next >= current * CHANGE_FACTOR || next * CHANGE_FACTOR <= current;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
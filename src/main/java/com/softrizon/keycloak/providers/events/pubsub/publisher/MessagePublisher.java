@@ -0,0 +1,181 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.softrizon.keycloak.providers.events.pubsub.compression.MessageCompressor;
+import com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig;
+import com.softrizon.keycloak.providers.events.pubsub.diagnostics.DiagnosticsBuffer;
+import com.softrizon.keycloak.providers.events.pubsub.metrics.PubSubMetrics;
+import com.softrizon.keycloak.providers.events.pubsub.spool.MessageSpool;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.createEventName;
+
+/**
+ * Builds the Pub/Sub messages of serialized events and publishes them, shared by all sessions.
+ * <p>
+ * Publishes are tracked in the spool until acknowledged, failed ones are spooled for replay, and the outcome of each
+ * message feeds the adaptive batching, the metrics and the diagnostics.
+ */
+public class MessagePublisher {
+
+    private static final Logger logger = Logger.getLogger(MessagePublisher.class);
+
+    static final long FAILURE_LOG_INTERVAL = 1000;
+
+    private final PublisherPool publishers;
+    private final PubSubConfig config;
+    private final MessageCompressor compressor;
+    private final AdaptiveBatchingController batchingController;
+    private final MessageSpool spool;
+    private final PubSubMetrics metrics;
+    private final DiagnosticsBuffer diagnostics;
+    private final AtomicLong failures = new AtomicLong();
+
+    public MessagePublisher(PublisherPool publishers, PubSubConfig config, MessageCompressor compressor,
+                            AdaptiveBatchingController batchingController, MessageSpool spool,
+                            PubSubMetrics metrics, DiagnosticsBuffer diagnostics) {
+        Objects.requireNonNull(publishers, String.format("%s: pub/pub publishers are required.", PLUGIN_NAME));
+        Objects.requireNonNull(config, String.format("%s: a valid config object is required.", PLUGIN_NAME));
+
+        this.publishers = publishers;
+        this.config = config;
+        this.compressor = compressor; // Optional, only set when compression is enabled
+        this.batchingController = batchingController; // Optional, only set when adaptive batching is enabled
+        this.spool = spool; // Optional, only set when a spool directory is configured
+        this.metrics = metrics; // Optional, only set when Micrometer is available
+        this.diagnostics = diagnostics; // Optional, messages are neither counted nor recorded without it
+    }
+
+    public PubsubMessage createMessage(ByteString data, Map<String, String> attributes, String orderingKey) {
+        // Compress large bodies, subscribers detect them by the content encoding attribute
+        final ByteString compressed = compressor != null ? compressor.compress(data) : null;
+        if (compressed != null) {
+            attributes.put(MessageCompressor.CONTENT_ENCODING_ATTRIBUTE, compressor.getContentEncoding());
+            data = compressed;
+        }
+        // Message bodies are never logged, they may carry personal data
+        if (logger.isDebugEnabled()) {
+            logger.debugf("%s: message of %d byte(s) with attributes: %s.", PLUGIN_NAME, data.size(), attributes);
+        }
+
+        final PubsubMessage.Builder builder = PubsubMessage.newBuilder()
+                .putAllAttributes(attributes)
+                .setData(data);
+        if (orderingKey != null) builder.setOrderingKey(orderingKey);
+
+        return builder.build();
+    }
+
+    public void spill(RoutedMessage routedMessage, long committedAt) {
+        if (routedMessage == null) return;
+
+        // Without a spool there is nowhere to spill to, so publish on the calling thread
+        if (spool == null || !spool.append(routedMessage.topicId, routedMessage.message)) {
+            publish(routedMessage, committedAt);
+        }
+    }
+
+    public void publish(RoutedMessage routedMessage, long committedAt) {
+        if (routedMessage == null) return;
+
+        final String topicId = routedMessage.topicId;
+        final PubsubMessage message = routedMessage.message;
+        final int size = message.getData().size();
+
+        long spoolTicket = 0;
+        try {
+            final long ticket = spoolTicket = spool != null ? spool.track(topicId, message) : 0;
+            final long publishedAt = System.nanoTime();
+            ApiFuture<String> messageIdFuture = publishers.get(topicId, message).publish(message);
+            if (batchingController != null) batchingController.recordPublish(size);
+            if (metrics != null) metrics.recordPublishStarted(size);
+            ApiFutures.addCallback(messageIdFuture, new ApiFutureCallback<String>() {
+
+                // Handle message success
+                public void onSuccess(String messageId) {
+                    if (spool != null) spool.untrack(ticket);
+                    if (metrics != null) metrics.recordPublishCompleted(size, committedAt, true);
+                    if (batchingController != null) batchingController.recordAck(System.nanoTime() - publishedAt);
+                    recordOutcome(DiagnosticsBuffer.Outcome.PUBLISHED, routedMessage, messageId, null);
+                    if (logger.isDebugEnabled()) {
+                        logger.debugf("%s: sent message id '%s' to pub/sub topic '%s' successfully.",
+                                PLUGIN_NAME, messageId, topicId != null ? topicId : config.getTopicId());
+                    }
+                }
+
+                // Handle message failure
+                public void onFailure(Throwable throwable) {
+                    recordOutcome(DiagnosticsBuffer.Outcome.FAILED, routedMessage, null, throwable);
+                    logFailure(topicId, throwable);
+                    if (metrics != null) metrics.recordPublishCompleted(size, committedAt, false);
+                    if (spool != null) {
+                        spool.untrack(ticket);
+                        spool.append(topicId, message);
+                    }
+                    resumePublish(topicId, message);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (Exception exception) {
+            recordOutcome(DiagnosticsBuffer.Outcome.FAILED, routedMessage, null, exception);
+            logFailure(topicId, exception);
+            if (spool != null) {
+                spool.untrack(spoolTicket);
+                spool.append(topicId, message);
+            }
+            resumePublish(topicId, message);
+        }
+    }
+
+    private void logFailure(String topicId, Throwable throwable) {
+        // An outage fails every publish, so only the first failure and every thousandth after it are warned about
+        final long count = failures.incrementAndGet();
+        if (count == 1 || count % FAILURE_LOG_INTERVAL == 0) {
+            logger.warnf(throwable, "%s: failed to send message to pub/sub topic '%s', %d failure(s) so far.",
+                    PLUGIN_NAME, topicId != null ? topicId : config.getTopicId(), count);
+        } else if (logger.isDebugEnabled()) {
+            logger.debugf(throwable, "%s: failed to send message to pub/sub topic '%s'.", PLUGIN_NAME,
+                    topicId != null ? topicId : config.getTopicId());
+        }
+    }
+
+    private void recordOutcome(DiagnosticsBuffer.Outcome outcome, RoutedMessage routedMessage, String messageId,
+                               Throwable error) {
+        if (diagnostics == null || !diagnostics.count(outcome)) return;
+
+        final String topicId = routedMessage.topicId != null ? routedMessage.topicId : config.getTopicId();
+        final int size = routedMessage.message.getData().size();
+        if (routedMessage.event != null) {
+            final Event event = routedMessage.event;
+            diagnostics.record(outcome, event.getRealmId(), event.getId(), createEventName(event), topicId, messageId,
+                    size, error);
+        } else if (routedMessage.adminEvent != null) {
+            final AdminEvent adminEvent = routedMessage.adminEvent;
+            diagnostics.record(outcome, adminEvent.getRealmId(), adminEvent.getId(), createEventName(adminEvent),
+                    topicId, messageId, size, error);
+        } else {
+            // Summaries not created from a single event, described by their attributes
+            final PubsubMessage message = routedMessage.message;
+            diagnostics.record(outcome, message.getAttributesOrDefault("realmId", null), null,
+                    message.getAttributesOrDefault("event", null), topicId, messageId, size, error);
+        }
+    }
+
+    private void resumePublish(String topicId, PubsubMessage message) {
+        // A failure pauses its ordering key on the publisher, resume it so later events of the key are not rejected
+        if (message.getOrderingKey().isEmpty()) return;
+
+        publishers.resumePublish(topicId, message.getOrderingKey());
+    }
+}
@@ -0,0 +1,117 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.TransportChannel;
+import com.google.api.gax.rpc.TransportChannelProvider;
+import com.google.cloud.pubsub.v1.TopicAdminSettings;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * One gRPC channel per publisher stripe, shared by the publishers of all topics on that stripe.
+ * <p>
+ * Channels are built and asked to connect up front, so the TLS handshake happens at startup rather than on the first
+ * event, and publishers rebuilt by adaptive batching reuse the connection of the ones they replace. Publishers do not
+ * close these channels, {@link #close()} does once all publishers are shut down.
+ */
+public class PublisherChannels implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(PublisherChannels.class);
+
+    private final TransportChannel[] channels;
+    private final List<ScheduledExecutorService> executors;
+
+    private PublisherChannels(TransportChannel[] channels, List<ScheduledExecutorService> executors) {
+        this.channels = channels;
+        this.executors = executors;
+    }
+
+    /**
+     * Connects {@code stripes} plaintext channels to the emulator at {@code host}.
+     */
+    public static PublisherChannels forEmulator(String host, int stripes) {
+        final TransportChannel[] channels = new TransportChannel[stripes];
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            final ManagedChannel channel = ManagedChannelBuilder.forTarget(host).usePlaintext().build();
+            channel.getState(true);
+            channels[stripe] = GrpcTransportChannel.create(channel);
+        }
+
+        return new PublisherChannels(channels, new ArrayList<>());
+    }
+
+    /**
+     * Connects {@code stripes} channels to {@code endpoint}, or to the default Pub/Sub endpoint when it is
+     * {@code null}. Calls on each channel run on its own executor of {@code executorThreadCount} threads, or of the
+     * client library default when it is {@code null}.
+     */
+    public static PublisherChannels forEndpoint(String endpoint, int stripes, Integer executorThreadCount,
+                                                String quotaProjectId) throws IOException {
+        final Map<String, String> headers = new HashMap<>(
+                TopicAdminSettings.defaultApiClientHeaderProviderBuilder().build().getHeaders());
+        if (quotaProjectId != null) headers.put("x-goog-user-project", quotaProjectId);
+
+        final TransportChannel[] channels = new TransportChannel[stripes];
+        final List<ScheduledExecutorService> executors = new ArrayList<>();
+        final PublisherChannels publisherChannels = new PublisherChannels(channels, executors);
+        try {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                final InstantiatingExecutorProvider.Builder executorProvider = InstantiatingExecutorProvider
+                        .newBuilder();
+                if (executorThreadCount != null) executorProvider.setExecutorThreadCount(executorThreadCount);
+                final ScheduledExecutorService executor = executorProvider.build().getExecutor();
+                executors.add(executor);
+
+                // Connect as soon as the channel exists, rather than on the first publish
+                TransportChannelProvider provider = TopicAdminSettings.defaultGrpcTransportProviderBuilder()
+                        .setChannelPoolSettings(ChannelPoolSettings.staticallySized(1))
+                        .setChannelPrimer(channel -> channel.getState(true))
+                        .setExecutor(executor)
+                        .build()
+                        .withHeaders(headers);
+                provider = provider.withEndpoint(endpoint != null ? endpoint : TopicAdminSettings.getDefaultEndpoint());
+                channels[stripe] = provider.getTransportChannel();
+            }
+        } catch (IOException | RuntimeException exception) {
+            publisherChannels.close();
+            throw exception;
+        }
+
+        return publisherChannels;
+    }
+
+    /**
+     * Returns the channel of {@code stripe}.
+     */
+    public TransportChannel get(int stripe) {
+        return channels[stripe];
+    }
+
+    @Override
+    public void close() {
+        for (TransportChannel channel : channels) {
+            if (channel == null) continue;
+
+            try {
+                channel.close();
+            } catch (Exception exception) {
+                logger.debugf(exception, "%s: failed to close publisher channel.", PLUGIN_NAME);
+            }
+        }
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import com.google.api.gax.batching.BatchingSettings;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.PublisherInterface;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.TopicName;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Publishers of all the topics events are routed to, built on first use and shared by all sessions.
+ * <p>
+ * Every topic gets its own publisher, so each topic's batches stay dense. A {@code null} topic id stands for the
+ * default topic. When the batching settings change, all publishers are rebuilt in place and the replaced ones are
+ * handed back to the caller, which shuts them down once in-flight publishes had a chance to complete.
+ * <p>
+ * In striped mode every topic gets {@code stripes} publishers instead, each with its own batching lock, channel and
+ * executor, so that many request threads do not contend on a single publisher. Messages with an ordering key always go
+ * to the stripe of their key, so their order is kept. Other messages go to the stripe of their stripe key attribute
+ * when one is configured, or of the publishing thread otherwise.
+ */
+public class PublisherPool implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(PublisherPool.class);
+
+    static final long TERMINATION_TIMEOUT_MINUTES = 1;
+
+    private final String projectId;
+    private final String defaultTopicId;
+    private final int stripes;
+    private final String stripeKeyAttribute; // Null to stripe by publishing thread
+    private final PublisherFactory factory;
+    private final Map<String, AtomicReferenceArray<PublisherInterface>> publishers = new ConcurrentHashMap<>();
+    private volatile BatchingSettings batchingSettings;
+    private boolean closed; // Guarded by this
+
+    public PublisherPool(String projectId, String defaultTopicId, BatchingSettings batchingSettings,
+                         PublisherFactory factory) {
+        this(projectId, defaultTopicId, batchingSettings, 1, null, factory);
+    }
+
+    public PublisherPool(String projectId, String defaultTopicId, BatchingSettings batchingSettings, int stripes,
+                         String stripeKeyAttribute, PublisherFactory factory) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException(String.format("%s: publisher stripes should be positive.", PLUGIN_NAME));
+        }
+
+        this.projectId = projectId;
+        this.defaultTopicId = defaultTopicId;
+        this.batchingSettings = batchingSettings;
+        this.stripes = stripes;
+        this.stripeKeyAttribute = stripeKeyAttribute;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the first publisher of {@code topicId}, or of the default topic when it is {@code null}.
+     */
+    public PublisherInterface get(String topicId) throws IOException {
+        return get(topicId, 0);
+    }
+
+    /**
+     * Returns the publisher {@code message} should be published with on {@code topicId}, or on the default topic
+     * when it is {@code null}.
+     */
+    public PublisherInterface get(String topicId, PubsubMessage message) throws IOException {
+        return get(topicId, stripe(message));
+    }
+
+    /**
+     * Builds every publisher of {@code topicId}, or of the default topic when it is {@code null}, ahead of first use.
+     */
+    public void warmUp(String topicId) throws IOException {
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            get(topicId, stripe);
+        }
+    }
+
+    /**
+     * Resumes publishing {@code orderingKey} on the publisher of {@code topicId}, after a failure paused it.
+     */
+    public void resumePublish(String topicId, String orderingKey) {
+        final AtomicReferenceArray<PublisherInterface> topic = publishers.get(topicId != null ? topicId
+                : defaultTopicId);
+        final PublisherInterface publisher = topic != null ? topic.get(stripe(orderingKey.hashCode())) : null;
+        if (publisher instanceof Publisher) ((Publisher) publisher).resumePublish(orderingKey);
+    }
+
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Rebuilds every publisher with {@code newBatchingSettings} and returns the replaced ones. A publisher that fails
+     * to rebuild is kept as it is.
+     */
+    public synchronized List<PublisherInterface> rebuild(BatchingSettings newBatchingSettings) {
+        batchingSettings = newBatchingSettings;
+
+        final List<PublisherInterface> retired = new ArrayList<>();
+        for (Map.Entry<String, AtomicReferenceArray<PublisherInterface>> entry : publishers.entrySet()) {
+            final AtomicReferenceArray<PublisherInterface> topic = entry.getValue();
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                final PublisherInterface current = topic.get(stripe);
+                if (current == null) continue;
+
+                try {
+                    topic.set(stripe, factory.create(topicName(entry.getKey()), newBatchingSettings, stripe));
+                    retired.add(current);
+                } catch (IOException exception) {
+                    logger.warnf(exception, "%s: failed to rebuild the publisher of topic '%s', keeping the current "
+                            + "one.", PLUGIN_NAME, entry.getKey());
+                }
+            }
+        }
+
+        return retired;
+    }
+
+    /**
+     * Shuts down every publisher. Publishers are no longer built afterwards, so none is left running.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+
+        // Start all shutdowns first so the topics flush their last batches in parallel
+        final List<PublisherInterface> closing = new ArrayList<>();
+        for (AtomicReferenceArray<PublisherInterface> topic : publishers.values()) {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                if (topic.get(stripe) != null) closing.add(topic.get(stripe));
+            }
+        }
+        for (PublisherInterface publisher : closing) {
+            if (publisher instanceof Publisher) ((Publisher) publisher).shutdown();
+        }
+        publishers.clear();
+        for (PublisherInterface publisher : closing) {
+            awaitTermination(publisher);
+        }
+    }
+
+    /**
+     * Shuts down a single publisher, typically one returned by {@link #rebuild(BatchingSettings)}.
+     */
+    public static void shutdown(PublisherInterface publisher) {
+        if (!(publisher instanceof Publisher)) return;
+
+        ((Publisher) publisher).shutdown();
+        awaitTermination(publisher);
+    }
+
+    private static void awaitTermination(PublisherInterface publisher) {
+        if (!(publisher instanceof Publisher)) return;
+
+        try {
+            ((Publisher) publisher).awaitTermination(TERMINATION_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            logger.debugf(exception, "%s: awaiting pub/sub publisher termination interrupted.", PLUGIN_NAME);
+        }
+    }
+
+    private PublisherInterface get(String topicId, int stripe) throws IOException {
+        final String key = topicId != null ? topicId : defaultTopicId;
+        final AtomicReferenceArray<PublisherInterface> topic = publishers.get(key);
+        final PublisherInterface publisher = topic != null ? topic.get(stripe) : null;
+        if (publisher != null) return publisher;
+
+        return create(key, stripe);
+    }
+
+    private synchronized PublisherInterface create(String topicId, int stripe) throws IOException {
+        // Synchronized with rebuilds, so a new publisher never misses the latest batching settings, and with close
+        if (closed) {
+            throw new IOException(String.format("%s: publishers are closed, cannot publish to topic '%s'.",
+                    PLUGIN_NAME, topicId));
+        }
+        final AtomicReferenceArray<PublisherInterface> topic = publishers.computeIfAbsent(topicId,
+                key -> new AtomicReferenceArray<>(stripes));
+        PublisherInterface publisher = topic.get(stripe);
+        if (publisher != null) return publisher;
+
+        if (stripes > 1) {
+            logger.infof("%s: creating publisher %d of %d for topic '%s'.", PLUGIN_NAME, stripe + 1, stripes,
+                    topicId);
+        } else {
+            logger.infof("%s: creating publisher for topic '%s'.", PLUGIN_NAME, topicId);
+        }
+        publisher = factory.create(topicName(topicId), batchingSettings, stripe);
+        topic.set(stripe, publisher);
+
+        return publisher;
+    }
+
+    private int stripe(PubsubMessage message) {
+        if (stripes == 1) return 0;
+
+        // Ordering keys always map to the same stripe, the order of their messages is only kept within a publisher
+        final String key = !message.getOrderingKey().isEmpty() ? message.getOrderingKey()
+                : stripeKeyAttribute != null ? message.getAttributesOrDefault(stripeKeyAttribute, null) : null;
+
+        return stripe(key != null ? key.hashCode() : Long.hashCode(Thread.currentThread().getId()));
+    }
+
+    private int stripe(int hash) {
+        // Spread the high bits, string hash codes of similar keys differ mostly in their low bits
+        return Math.floorMod(hash ^ (hash >>> 16), stripes);
+    }
+
+    private TopicName topicName(String topicId) {
+        return TopicName.of(projectId, topicId);
+    }
+
+    @FunctionalInterface
+    public interface PublisherFactory {
+        PublisherInterface create(TopicName topicName, BatchingSettings batchingSettings, int stripe)
+                throws IOException;
+    }
+}
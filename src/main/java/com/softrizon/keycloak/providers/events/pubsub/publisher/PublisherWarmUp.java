@@ -0,0 +1,68 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Runs the publisher warm-up in the background as soon as Keycloak starts, so the first events do not pay for
+ * building publishers, connecting channels or fetching an access token.
+ * <p>
+ * A failed warm-up, e.g. while the network or the metadata server is not ready yet, is retried with an exponential
+ * backoff from {@link #INITIAL_BACKOFF_MS} up to {@link #MAX_BACKOFF_MS}. Events published meanwhile are not held
+ * back, their publisher is built on first use like before.
+ */
+public class PublisherWarmUp implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(PublisherWarmUp.class);
+
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 60_000;
+
+    private final Step step;
+    private final ScheduledExecutorService scheduler;
+    private final long startedAt = System.nanoTime();
+    private long backoffMs = INITIAL_BACKOFF_MS; // Only accessed by the scheduler thread
+    private int attempts; // Only accessed by the scheduler thread
+
+    public PublisherWarmUp(Step step) {
+        this.step = step;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PLUGIN_NAME + "-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::attempt);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void attempt() {
+        attempts++;
+        try {
+            step.run();
+            logger.infof("%s: publishers warmed up in %d ms.", PLUGIN_NAME,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            scheduler.shutdown();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (Exception exception) {
+            logger.warnf(exception, "%s: failed to warm up the publishers (attempt %d), retrying in %d ms.",
+                    PLUGIN_NAME, attempts, backoffMs);
+            scheduler.schedule(this::attempt, backoffMs, TimeUnit.MILLISECONDS);
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Step {
+        void run() throws Exception;
+    }
+}
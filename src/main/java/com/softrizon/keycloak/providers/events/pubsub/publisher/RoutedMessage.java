@@ -0,0 +1,23 @@
+package com.softrizon.keycloak.providers.events.pubsub.publisher;
+
+import com.google.pubsub.v1.PubsubMessage;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+/**
+ * A message ready to be published, with the topic it is routed to and the event it was created from.
+ */
+public final class RoutedMessage {
+
+    final String topicId; // Null for the default topic
+    final PubsubMessage message;
+    final Event event; // Either the user or the admin event the message was created from, or neither for summaries
+    final AdminEvent adminEvent;
+
+    public RoutedMessage(String topicId, PubsubMessage message, Event event, AdminEvent adminEvent) {
+        this.topicId = topicId;
+        this.message = message;
+        this.event = event;
+        this.adminEvent = adminEvent;
+    }
+}
@@ -0,0 +1,402 @@
+package com.softrizon.keycloak.providers.events.pubsub.spool;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.pubsub.v1.PubsubMessage;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Write-ahead spool for messages that could not be delivered to Pub/Sub.
+ * <p>
+ * Messages are appended to memory-mapped, fixed-size segment files as {@code [length][crc32][PubsubMessage bytes]}
+ * records. A zero length marks the end of a segment, a record is only valid once its length is written, so a torn
+ * write is detected on recovery. Segments are replayed oldest first, the active one up to its last record while it is
+ * still written, and deleted once they are full and all their records have been acknowledged, which gives
+ * at-least-once delivery across restarts. Messages routed to a topic other than the default
+ * one carry it in a reserved attribute while spooled, which is removed again when the record is read.
+ * <p>
+ * The committed position of a segment is saved in a {@code .offset} sidecar file next to it, so a restart resumes
+ * after the last commit. Records replayed but not committed yet when the node stops, or whose commit was not flushed
+ * to disk with {@link FsyncPolicy#NEVER}, are replayed again.
+ */
+public class MessageSpool implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(MessageSpool.class);
+
+    static final String SEGMENT_PREFIX = "spool-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String OFFSET_SUFFIX = ".offset";
+    static final int OFFSET_CHECK = 0x5f0ff5e7; // Stored xor-ed with the position, to detect a torn write
+    static final int RECORD_HEADER_BYTES = 8;
+    public static final int MIN_SEGMENT_BYTES = RECORD_HEADER_BYTES + 1;
+    static final String TOPIC_ATTRIBUTE = "__spool_topic_id";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final Deque<Segment> sealedSegments = new ArrayDeque<>();
+    private final Map<Long, Pending> outstanding = new ConcurrentHashMap<>();
+    private final AtomicLong outstandingTickets = new AtomicLong();
+
+    // Guarded by this
+    private Segment activeSegment;
+    private long nextSequence;
+    private long totalBytes; // Undelivered bytes
+
+    public MessageSpool(Path directory, long maxBytes, int segmentBytes, FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Tracks a message handed to the publisher, so it can be spooled if it is still in flight at shutdown.
+     */
+    public long track(String topicId, PubsubMessage message) {
+        long ticket = outstandingTickets.incrementAndGet();
+        outstanding.put(ticket, new Pending(topicId, message));
+        return ticket;
+    }
+
+    public void untrack(long ticket) {
+        outstanding.remove(ticket);
+    }
+
+    /**
+     * Spools every tracked message that has not completed yet.
+     */
+    public void spoolOutstanding() {
+        for (Long ticket : new ArrayList<>(outstanding.keySet())) {
+            Pending pending = outstanding.remove(ticket);
+            if (pending != null) append(pending.topicId, pending.message);
+        }
+    }
+
+    /**
+     * Appends {@code message}, published to {@code topicId} or to the default topic when it is {@code null}.
+     */
+    public boolean append(String topicId, PubsubMessage message) {
+        if (topicId != null) message = message.toBuilder().putAttributes(TOPIC_ATTRIBUTE, topicId).build();
+
+        final byte[] bytes = message.toByteArray();
+        if (bytes.length == 0) return true; // A zero length marks the end of a segment, nothing to keep anyway
+
+        final int recordBytes = RECORD_HEADER_BYTES + bytes.length;
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        synchronized (this) {
+            if (recordBytes > segmentBytes || totalBytes + recordBytes > maxBytes) {
+                logger.errorf("%s: spool is full or message is too large, dropping a %d byte message.",
+                        PLUGIN_NAME, bytes.length);
+                return false;
+            }
+
+            try {
+                if (activeSegment == null || activeSegment.remaining() < recordBytes) roll();
+
+                // Write the body and checksum before the length, the length is what makes the record visible
+                final Segment segment = activeSegment;
+                final int position = segment.writePosition;
+                ByteBuffer target = segment.buffer.duplicate();
+                target.position(position + RECORD_HEADER_BYTES);
+                target.put(bytes);
+                segment.buffer.putInt(position + 4, (int) crc.getValue());
+                segment.buffer.putInt(position, bytes.length);
+                segment.writePosition += recordBytes;
+                totalBytes += recordBytes;
+
+                if (fsyncPolicy == FsyncPolicy.ALWAYS) segment.buffer.force();
+                return true;
+            } catch (IOException exception) {
+                logger.errorf(exception, "%s: failed to spool message.", PLUGIN_NAME);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest segment with records to replay. The active segment is replayed without sealing it, so a
+     * trickle of failures does not create a new segment file every time it is replayed.
+     */
+    public synchronized Segment nextSegment() {
+        if (!sealedSegments.isEmpty()) return sealedSegments.peekFirst();
+
+        return activeSegment != null && activeSegment.readPosition < activeSegment.writePosition
+                ? activeSegment : null;
+    }
+
+    /**
+     * Reads up to {@code maxRecords} records after the segment's committed position. Records are never written again
+     * once their length is, so only the positions are read under the lock.
+     */
+    public List<Record> read(Segment segment, int maxRecords) {
+        final int writePosition;
+        int position;
+        synchronized (this) {
+            writePosition = segment.writePosition;
+            position = segment.readPosition;
+        }
+
+        final List<Record> records = new ArrayList<>();
+        while (records.size() < maxRecords && position + RECORD_HEADER_BYTES <= writePosition) {
+            final int length = segment.buffer.getInt(position);
+            final byte[] bytes = new byte[length];
+            ByteBuffer source = segment.buffer.duplicate();
+            source.position(position + RECORD_HEADER_BYTES);
+            source.get(bytes);
+            position += RECORD_HEADER_BYTES + length;
+
+            try {
+                PubsubMessage message = PubsubMessage.parseFrom(bytes);
+                String topicId = message.getAttributesOrDefault(TOPIC_ATTRIBUTE, null);
+                if (topicId != null) message = message.toBuilder().removeAttributes(TOPIC_ATTRIBUTE).build();
+                records.add(new Record(topicId, message, position));
+            } catch (InvalidProtocolBufferException exception) {
+                // Keep the position so the record is committed and skipped with the next delivered ones
+                logger.errorf(exception, "%s: skipping unreadable record in spool segment '%s'.",
+                        PLUGIN_NAME, segment.path);
+                records.add(new Record(null, null, position));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Marks all records up to {@code position} as delivered, deleting the segment once it is fully delivered.
+     */
+    public synchronized void commit(Segment segment, int position) {
+        totalBytes -= position - segment.readPosition;
+        segment.readPosition = position;
+        // The active segment keeps taking messages, it is deleted once it is full and delivered
+        if (segment == activeSegment || segment.readPosition < segment.writePosition) {
+            try {
+                segment.writeReadPosition(fsyncPolicy != FsyncPolicy.NEVER);
+            } catch (IOException exception) {
+                logger.warnf(exception, "%s: failed to save the position of spool segment '%s', its delivered "
+                        + "records will be replayed again after a restart.", PLUGIN_NAME, segment.path);
+            }
+            return;
+        }
+
+        sealedSegments.remove(segment);
+        try {
+            segment.delete();
+        } catch (IOException exception) {
+            logger.warnf(exception, "%s: failed to delete spool segment '%s'.", PLUGIN_NAME, segment.path);
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized void flush() {
+        if (activeSegment != null && fsyncPolicy != FsyncPolicy.NEVER) activeSegment.buffer.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (activeSegment != null && fsyncPolicy != FsyncPolicy.NEVER) activeSegment.buffer.force();
+        for (Segment segment : segments()) {
+            try {
+                segment.close();
+            } catch (IOException exception) {
+                logger.debugf(exception, "%s: failed to close spool segment '%s'.", PLUGIN_NAME, segment.path);
+            }
+        }
+    }
+
+    private List<Segment> segments() {
+        List<Segment> segments = new ArrayList<>(sealedSegments);
+        if (activeSegment != null) segments.add(activeSegment);
+        return segments;
+    }
+
+    private void roll() throws IOException {
+        if (activeSegment != null && activeSegment.readPosition < activeSegment.writePosition) {
+            if (fsyncPolicy != FsyncPolicy.NEVER) activeSegment.buffer.force();
+            sealedSegments.addLast(activeSegment);
+        } else if (activeSegment != null) {
+            try {
+                activeSegment.delete(); // Fully delivered already
+            } catch (IOException exception) {
+                logger.warnf(exception, "%s: failed to delete spool segment '%s'.", PLUGIN_NAME, activeSegment.path);
+            }
+        }
+
+        Path path = directory.resolve(String.format(Locale.US, "%s%020d%s", SEGMENT_PREFIX, nextSequence++,
+                SEGMENT_SUFFIX));
+        activeSegment = Segment.open(path, segmentBytes);
+        Files.deleteIfExists(activeSegment.offsetPath); // Left behind by a segment that failed to delete
+    }
+
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null); // Sequence numbers are zero padded, so the names sort in write order
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+
+            Segment segment = Segment.open(path, (int) Files.size(path));
+            segment.recoverPositions();
+            if (segment.readPosition >= segment.writePosition) { // Empty or fully delivered
+                segment.delete();
+                continue;
+            }
+
+            sealedSegments.addLast(segment);
+            totalBytes += segment.writePosition - segment.readPosition;
+        }
+
+        if (!sealedSegments.isEmpty()) {
+            logger.infof("%s: recovered %d spool segment(s) with %d bytes to replay.",
+                    PLUGIN_NAME, sealedSegments.size(), totalBytes);
+        }
+    }
+
+    public enum FsyncPolicy {ALWAYS, INTERVAL, NEVER}
+
+    public static final class Record {
+        public final String topicId; // Null for the default topic
+        public final PubsubMessage message; // Null when the record could not be read
+        public final int endPosition;
+
+        Record(String topicId, PubsubMessage message, int endPosition) {
+            this.topicId = topicId;
+            this.message = message;
+            this.endPosition = endPosition;
+        }
+    }
+
+    private static final class Pending {
+        private final String topicId;
+        private final PubsubMessage message;
+
+        private Pending(String topicId, PubsubMessage message) {
+            this.topicId = topicId;
+            this.message = message;
+        }
+    }
+
+    public static final class Segment {
+        private static final int OFFSET_BYTES = 8;
+
+        private final Path path;
+        private final Path offsetPath;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private FileChannel offsetChannel; // Opened on the first commit
+        private int writePosition;
+        private int readPosition;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            final String name = path.getFileName().toString();
+            this.path = path;
+            this.offsetPath = path.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length())
+                    + OFFSET_SUFFIX);
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            return new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        /**
+         * Finds the end of the last complete record, and resumes reading at the saved position when it is the end of
+         * one of the records.
+         */
+        void recoverPositions() throws IOException {
+            final int savedPosition = readSavedPosition();
+            int position = 0;
+            while (position + RECORD_HEADER_BYTES <= buffer.capacity()) {
+                final int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_BYTES + length > buffer.capacity()) break;
+
+                final CRC32 crc = new CRC32();
+                ByteBuffer body = buffer.duplicate();
+                body.position(position + RECORD_HEADER_BYTES);
+                body.limit(position + RECORD_HEADER_BYTES + length);
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) break; // Torn write
+
+                position += RECORD_HEADER_BYTES + length;
+                if (position == savedPosition) readPosition = position;
+            }
+            writePosition = position;
+        }
+
+        void writeReadPosition(boolean force) throws IOException {
+            if (offsetChannel == null) {
+                offsetChannel = FileChannel.open(offsetPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+
+            final ByteBuffer bytes = ByteBuffer.allocate(OFFSET_BYTES);
+            bytes.putInt(readPosition).putInt(readPosition ^ OFFSET_CHECK).flip();
+            while (bytes.hasRemaining()) {
+                offsetChannel.write(bytes, bytes.position());
+            }
+            if (force) offsetChannel.force(false);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            if (offsetChannel != null) offsetChannel.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            // The position goes first, a segment left without one is replayed again rather than skipped
+            Files.deleteIfExists(offsetPath);
+            Files.deleteIfExists(path);
+        }
+
+        private int readSavedPosition() throws IOException {
+            if (!Files.exists(offsetPath)) return 0;
+
+            final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(offsetPath));
+            if (bytes.remaining() != OFFSET_BYTES) return 0;
+
+            final int position = bytes.getInt();
+            return (position ^ OFFSET_CHECK) == bytes.getInt() ? position : 0;
+        }
+    }
+}
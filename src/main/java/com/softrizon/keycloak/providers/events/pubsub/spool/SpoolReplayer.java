@@ -0,0 +1,109 @@
+package com.softrizon.keycloak.providers.events.pubsub.spool;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.softrizon.keycloak.providers.events.pubsub.publisher.PublisherPool;
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.softrizon.keycloak.providers.events.pubsub.config.PubSubConfig.PLUGIN_NAME;
+
+/**
+ * Drains the {@link MessageSpool} back into Pub/Sub in the background.
+ * <p>
+ * Once per tick at most {@code replayRate} spooled messages are republished to their topics and committed when all of
+ * them are acknowledged. A failed round leaves the records in the spool and backs off exponentially, so an unhealthy
+ * Pub/Sub is probed rather than flooded.
+ */
+public class SpoolReplayer implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(SpoolReplayer.class);
+
+    static final long TICK_SECONDS = 1;
+    static final long MAX_BACKOFF_TICKS = 60;
+    static final long ACK_TIMEOUT_SECONDS = 60;
+
+    private final MessageSpool spool;
+    private final PublisherPool publishers;
+    private final int replayRate;
+    private final ScheduledExecutorService scheduler;
+
+    // Only touched from the scheduler thread
+    private long backoffTicks;
+    private long skippedTicks;
+
+    public SpoolReplayer(MessageSpool spool, PublisherPool publishers, int replayRate) {
+        this.spool = spool;
+        this.publishers = publishers;
+        this.replayRate = replayRate;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PLUGIN_NAME + "-spool-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::tick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void tick() {
+        spool.flush();
+        if (skippedTicks++ < backoffTicks) return;
+        skippedTicks = 0;
+
+        try {
+            replay();
+            backoffTicks = 0;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (Exception exception) {
+            backoffTicks = Math.min(MAX_BACKOFF_TICKS, Math.max(1, backoffTicks * 2));
+            logger.warnf(exception, "%s: failed to replay spooled messages, retrying in %d second(s).",
+                    PLUGIN_NAME, backoffTicks * TICK_SECONDS);
+        }
+    }
+
+    private void replay() throws Exception {
+        final MessageSpool.Segment segment = spool.nextSegment();
+        if (segment == null) return;
+
+        final List<MessageSpool.Record> records = spool.read(segment, replayRate);
+        if (records.isEmpty()) return;
+
+        final List<ApiFuture<String>> futures = new ArrayList<>(records.size());
+        for (MessageSpool.Record record : records) {
+            if (record.message == null) continue;
+
+            futures.add(publishers.get(record.topicId, record.message).publish(record.message));
+        }
+        try {
+            ApiFutures.allAsList(futures).get(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException exception) {
+            // Failed ordering keys are paused, resume them so the next tick can replay the segment again
+            for (MessageSpool.Record record : records) {
+                if (record.message != null && !record.message.getOrderingKey().isEmpty()) {
+                    publishers.resumePublish(record.topicId, record.message.getOrderingKey());
+                }
+            }
+            throw exception;
+        }
+
+        spool.commit(segment, records.get(records.size() - 1).endPosition);
+        logger.debugf("%s: replayed %d spooled message(s).", PLUGIN_NAME, futures.size());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            logger.debugf(exception, "%s: awaiting spool replayer termination interrupted.", PLUGIN_NAME);
+        }
+    }
+}
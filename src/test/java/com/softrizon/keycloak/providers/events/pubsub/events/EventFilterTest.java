@@ -0,0 +1,244 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventFilterTest {
+
+    @Test
+    void parsesIpv4Addresses() {
+        assertEquals(0xc0000201L, EventFilter.parseIpv4("192.0.2.1", 0, 9));
+        assertEquals(0xffffffffL, EventFilter.parseIpv4("255.255.255.255", 0, 15));
+        assertEquals(0, EventFilter.parseIpv4("0.0.0.0", 0, 7));
+    }
+
+    @Test
+    void rejectsMalformedIpv4Addresses() {
+        for (String ip : new String[]{"", "1.2.3", "1.2.3.4.5", "256.0.0.1", "1..2.3", "1.2.3.", ".1.2.3",
+                "1234.1.1.1", "1.2.3.a", "1.2.3.4 "}) {
+            assertEquals(-1, EventFilter.parseIpv4(ip, 0, ip.length()), ip);
+        }
+    }
+
+    @Test
+    void parsesIpv6Addresses() {
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0, 0, 0}, ipv6("::"));
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0, 0, 1}, ipv6("::1"));
+        assertArrayEquals(new int[]{1, 0, 0, 0, 0, 0, 0, 0}, ipv6("1::"));
+        assertArrayEquals(new int[]{0x2001, 0xdb8, 0, 0, 0, 0x8a2e, 0x370, 0x7334},
+                ipv6("2001:db8::8a2e:370:7334"));
+        assertArrayEquals(new int[]{0x2001, 0xdb8, 0, 0, 0, 0x8a2e, 0x370, 0x7334},
+                ipv6("2001:0DB8:0000:0000:0000:8A2E:0370:7334"));
+    }
+
+    @Test
+    void parsesIpv4MappedIpv6Addresses() {
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0xffff, 0xc000, 0x0201}, ipv6("::ffff:192.0.2.1"));
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0, 0xffff, 0xc000, 0x0201}, ipv6("0:0:0:0:0:ffff:192.0.2.1"));
+    }
+
+    @Test
+    void ignoresIpv6ZoneIds() {
+        assertArrayEquals(new int[]{0xfe80, 0, 0, 0, 0, 0, 0, 1}, ipv6("fe80::1%eth0"));
+        assertArrayEquals(new int[]{0xfe80, 0, 0, 0, 0, 0, 0, 1}, ipv6("fe80::1%25"));
+    }
+
+    @Test
+    void rejectsMalformedIpv6Addresses() {
+        for (String ip : new String[]{"", ":", ":::", "1:", ":1", "1::2::3", "12345::", "g::", "1:2:3:4:5:6:7",
+                "1:2:3:4:5:6:7:8:9", "1:2:3:4:5:6:7::8", "::1.2.3", "1.2.3.4::", "::ffff:1.2.3.4:5",
+                "1:2:3:4:5:6:7:1.2.3.4"}) {
+            assertFalse(EventFilter.parseIpv6(ip, new int[8]), ip);
+        }
+    }
+
+    @Test
+    void matchesIpv4Blocks() {
+        final EventFilter filter = filter("ip", "10.0.0.0/8;192.0.2.1");
+        assertTrue(filter.test(userEvent("10.255.0.1")));
+        assertTrue(filter.test(userEvent("192.0.2.1")));
+        assertFalse(filter.test(userEvent("192.0.2.2")));
+        assertFalse(filter.test(userEvent("11.0.0.1")));
+    }
+
+    @Test
+    void matchesIpv4ClientsOfDualStackListeners() {
+        final EventFilter filter = filter("ip", "10.0.0.0/8");
+        assertTrue(filter.test(userEvent("::ffff:10.1.2.3")));
+        assertFalse(filter.test(userEvent("::ffff:11.1.2.3")));
+        assertFalse(filter.test(userEvent("::10.1.2.3"))); // Not mapped
+    }
+
+    @Test
+    void matchesHostAndCatchAllPrefixLengths() {
+        final EventFilter host = filter("ip", "192.0.2.1/32");
+        assertTrue(host.test(userEvent("192.0.2.1")));
+        assertFalse(host.test(userEvent("192.0.2.0")));
+
+        final EventFilter anyIpv4 = filter("ip", "0.0.0.0/0");
+        assertTrue(anyIpv4.test(userEvent("255.255.255.255")));
+        assertTrue(anyIpv4.test(userEvent("::ffff:1.2.3.4")));
+        assertFalse(anyIpv4.test(userEvent("2001:db8::1")));
+
+        final EventFilter anyIpv6 = filter("ip", "::/0");
+        assertTrue(anyIpv6.test(userEvent("2001:db8::1")));
+        assertTrue(anyIpv6.test(userEvent("::")));
+        assertFalse(anyIpv6.test(userEvent("10.0.0.1")));
+
+        final EventFilter ipv6Host = filter("ip", "2001:db8::1/128");
+        assertTrue(ipv6Host.test(userEvent("2001:DB8:0:0:0:0:0:1")));
+        assertTrue(ipv6Host.test(userEvent("2001:db8::1%eth0")));
+        assertFalse(ipv6Host.test(userEvent("2001:db8::2")));
+    }
+
+    @Test
+    void matchesIpv6BlocksAcrossTheHalves() {
+        final EventFilter filter = filter("ip", "fd00::/8;2001:db8:0:0:8000::/65");
+        assertTrue(filter.test(userEvent("fd12:3456::1")));
+        assertFalse(filter.test(userEvent("fe80::1")));
+        assertTrue(filter.test(userEvent("2001:db8::ffff:0:0:1")));
+        assertFalse(filter.test(userEvent("2001:db8::7fff:0:0:1")));
+    }
+
+    @Test
+    void rejectsMissingOrMalformedEventAddresses() {
+        final EventFilter filter = filter("ip", "0.0.0.0/0;::/0");
+        assertFalse(filter.test(userEvent(null)));
+        assertFalse(filter.test(userEvent("")));
+        assertFalse(filter.test(userEvent("localhost")));
+        assertFalse(filter.test(userEvent("10.0.0.1.5")));
+        assertFalse(filter.test(userEvent("1::2::3")));
+    }
+
+    @Test
+    void rejectsMalformedCidrBlocks() {
+        for (String block : new String[]{"", "10.0.0.0/8;", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/", "10.0.0.0/x",
+                "10.0.0/8", "::/129", "1::2::3/64", "fe80::1%eth0/64x", "localhost"}) {
+            assertThrows(IllegalArgumentException.class, () -> filter("ip", block), block);
+        }
+    }
+
+    @Test
+    void matchesAdminEventAddresses() {
+        final EventFilter filter = filter("ip", "10.0.0.0/8");
+        final AdminEvent event = new AdminEvent();
+        assertFalse(filter.test(event));
+
+        event.setAuthDetails(new AuthDetails());
+        event.getAuthDetails().setIpAddress("10.0.0.1");
+        assertTrue(filter.test(event));
+    }
+
+    @Test
+    void matchesDetailValuesAndPrefixes() {
+        final EventFilter filter = filter("detail.identity_provider", "google;microsoft*");
+        assertTrue(filter.test(userEvent("identity_provider", "google")));
+        assertTrue(filter.test(userEvent("identity_provider", "microsoft-aad")));
+        assertFalse(filter.test(userEvent("identity_provider", "Google")));
+        assertFalse(filter.test(userEvent("identity_provider", "github")));
+        assertFalse(filter.test(userEvent("auth_method", "google")));
+        assertFalse(filter.test(new Event()));
+    }
+
+    @Test
+    void matchesAnyPresentDetailWithAWildcard() {
+        final EventFilter filter = filter("detail.identity_provider", "*");
+        assertTrue(filter.test(userEvent("identity_provider", "")));
+        assertFalse(filter.test(userEvent("auth_method", "openid-connect")));
+    }
+
+    @Test
+    void requiresEveryPredicate() {
+        final EventFilter.Builder builder = new EventFilter.Builder();
+        builder.add("detail.auth_method", "openid-connect");
+        builder.add("ip", "10.0.0.0/8");
+        final EventFilter filter = builder.build();
+
+        final Event event = userEvent("auth_method", "openid-connect");
+        event.setIpAddress("10.0.0.1");
+        assertTrue(filter.test(event));
+        event.setIpAddress("192.0.2.1");
+        assertFalse(filter.test(event));
+    }
+
+    @Test
+    void matchesResourcePaths() {
+        final EventFilter filter = filter("path", "users/*;groups/admins");
+        assertTrue(filter.test(adminEvent("users/1234/role-mappings")));
+        assertTrue(filter.test(adminEvent("groups/admins")));
+        assertFalse(filter.test(adminEvent("groups/admins/children")));
+        assertFalse(filter.test(adminEvent(null)));
+    }
+
+    @Test
+    void rejectsRepeatedOrEmptyOptions() {
+        final EventFilter.Builder builder = new EventFilter.Builder();
+        builder.add("ip", "10.0.0.0/8");
+        builder.add("path", "users/*");
+        builder.add("detail.auth_method", "password");
+        assertThrows(IllegalArgumentException.class, () -> builder.add("IP", "::/0"));
+        assertThrows(IllegalArgumentException.class, () -> builder.add("path", "groups/*"));
+        assertThrows(IllegalArgumentException.class, () -> builder.add("detail.auth_method", "otp"));
+        assertThrows(IllegalArgumentException.class, () -> builder.add("detail.", "otp"));
+        assertThrows(IllegalArgumentException.class, () -> filter("path", " "));
+        assertThrows(IllegalArgumentException.class, () -> filter("detail.auth_method", "password;;otp"));
+    }
+
+    @Test
+    void ignoresOtherOptions() {
+        final EventFilter.Builder builder = new EventFilter.Builder();
+        assertFalse(builder.add("coalesce", "10s"));
+        assertNull(builder.build());
+    }
+
+    @Test
+    void comparesFiltersByTheirOptions() {
+        assertEquals(filter("ip", "10.0.0.0/8"), filter("ip", "10.0.0.0/8"));
+        assertEquals(filter("ip", "10.0.0.0/8").hashCode(), filter("ip", "10.0.0.0/8").hashCode());
+        assertFalse(filter("ip", "10.0.0.0/8").equals(filter("ip", "10.0.0.0/16")));
+    }
+
+    private static int[] ipv6(String ip) {
+        final int[] groups = new int[8];
+        assertTrue(EventFilter.parseIpv6(ip, groups), ip);
+        return groups;
+    }
+
+    private static EventFilter filter(String name, String value) {
+        final EventFilter.Builder builder = new EventFilter.Builder();
+        assertTrue(builder.add(name, value));
+        return builder.build();
+    }
+
+    private static Event userEvent(String ipAddress) {
+        final Event event = new Event();
+        event.setIpAddress(ipAddress);
+        return event;
+    }
+
+    private static Event userEvent(String detailKey, String detailValue) {
+        final Map<String, String> details = new HashMap<>();
+        details.put(detailKey, detailValue);
+        final Event event = new Event();
+        event.setDetails(details);
+        return event;
+    }
+
+    private static AdminEvent adminEvent(String resourcePath) {
+        final AdminEvent event = new AdminEvent();
+        event.setResourcePath(resourcePath);
+        return event;
+    }
+}
@@ -0,0 +1,173 @@
+package com.softrizon.keycloak.providers.events.pubsub.events;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventPatternParserTest {
+
+    private static final String FORMAT = "JSON_API_V1";
+
+    private final EventPatternParser parser = new EventPatternParser();
+
+    @Test
+    void parsesPatternsWithoutPredicates() {
+        assertNull(parser.parse(FORMAT, "USER:*:SUCCESS:*:LOGIN|LOGIN||logins").filter);
+    }
+
+    @Test
+    void parsesDetailOptionsKeepingTheirCase() {
+        final EventPattern pattern = parser.parse(FORMAT,
+                "USER:*:SUCCESS:*:LOGIN|SOCIAL_LOGIN|||detail.identity_provider=google;microsoft*");
+        assertEquals("SOCIAL_LOGIN", pattern.alias);
+        assertNotNull(pattern.filter);
+        assertTrue(pattern.filter.test(userEvent("identity_provider", "microsoft-aad")));
+        assertFalse(pattern.filter.test(userEvent("identity_provider", "GOOGLE")));
+        assertFalse(pattern.filter.test(userEvent("IDENTITY_PROVIDER", "google")));
+    }
+
+    @Test
+    void parsesPathOptions() {
+        final EventPattern pattern = parser.parse(FORMAT, "ADMIN:*:SUCCESS:USER:*|||user-changes|Path=users/*");
+        assertEquals("user-changes", pattern.topic);
+        assertTrue(pattern.filter.test(adminEvent("users/1234", null)));
+        assertFalse(pattern.filter.test(adminEvent("Users/1234", null)));
+    }
+
+    @Test
+    void parsesIpOptionsOfUserAndAdminPatterns() {
+        final EventPattern user = parser.parse(FORMAT,
+                "USER:*:ERROR:*:LOGIN_ERROR|||internal-errors|ip=10.0.0.0/8;fd00::/8");
+        final Event event = new Event();
+        event.setIpAddress("fd00::1");
+        assertTrue(user.filter.test(event));
+
+        final EventPattern admin = parser.parse(FORMAT, "ADMIN:*:*:*:*||||IP=192.0.2.0/24|path=clients/*");
+        assertTrue(admin.filter.test(adminEvent("clients/1234", "192.0.2.10")));
+        assertFalse(admin.filter.test(adminEvent("clients/1234", "192.0.3.10")));
+        assertFalse(admin.filter.test(adminEvent("users/1234", "192.0.2.10")));
+    }
+
+    @Test
+    void combinesPredicatesWithOtherOptions() {
+        final EventPattern pattern = parser.parse(FORMAT,
+                "USER:*:*:*:LOGIN|||logins|coalesce=10s|detail.auth_method=openid-connect|exclude=details");
+        assertEquals(10_000, pattern.coalesceWindowMs);
+        assertNotNull(pattern.projection);
+        assertTrue(pattern.filter.test(userEvent("auth_method", "openid-connect")));
+    }
+
+    @Test
+    void comparesPatternsByTheirPredicates() {
+        assertEquals(parser.parse(FORMAT, "USER:*:*:*:*||||ip=10.0.0.0/8"),
+                parser.parse(FORMAT, "USER:*:*:*:*||||ip=10.0.0.0/8"));
+        assertFalse(parser.parse(FORMAT, "USER:*:*:*:*||||ip=10.0.0.0/8")
+                .equals(parser.parse(FORMAT, "USER:*:*:*:*||||ip=10.0.0.0/16")));
+    }
+
+    @Test
+    void rejectsPredicatesOfTheOtherKindOfEvent() {
+        assertThrows(IllegalArgumentException.class,
+                () -> parser.parse(FORMAT, "ADMIN:*:*:*:*||||detail.auth_method=password"));
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(FORMAT, "USER:*:*:*:*||||path=users/*"));
+    }
+
+    @Test
+    void rejectsMalformedPredicates() {
+        for (String pattern : new String[]{
+                "USER:*:*:*:*||||ip=10.0.0.0/33",
+                "USER:*:*:*:*||||ip=not-an-address",
+                "USER:*:*:*:*||||ip=10.0.0.0/8|ip=::/0",
+                "USER:*:*:*:*||||ip=",
+                "USER:*:*:*:*||||detail.=google",
+                "USER:*:*:*:*||||detail.auth_method=password|detail.auth_method=otp",
+                "ADMIN:*:*:*:*||||path=users/*;",
+                "USER:*:*:*:*||||ip"}) {
+            assertThrows(IllegalArgumentException.class, () -> parser.parse(FORMAT, pattern), pattern);
+        }
+    }
+
+    @Test
+    void triesTheNextPatternWhenAPredicateFails() {
+        final EventPatternMatcher matcher = parser.compile(EventPattern.Who.USER, Arrays.asList(
+                parser.parse(FORMAT, "USER:*:ERROR:*:LOGIN_ERROR|||internal-errors|ip=10.0.0.0/8"),
+                parser.parse(FORMAT, "USER:*:ERROR:*:LOGIN_ERROR|||login-errors")));
+
+        final Event event = new Event();
+        event.setType(EventType.LOGIN_ERROR);
+        event.setRealmId("realm");
+        event.setClientId("account");
+        event.setError("invalid_user_credentials");
+        event.setDetails(Collections.emptyMap());
+        event.setIpAddress("10.1.2.3");
+        assertEquals("internal-errors", matcher.match(event).map(pattern -> pattern.topic).orElse(null));
+
+        event.setIpAddress("192.0.2.1");
+        assertEquals("login-errors", matcher.match(event).map(pattern -> pattern.topic).orElse(null));
+    }
+
+    @Test
+    void matchesClientIdsWithRegexMetacharactersAsARegex() {
+        final EventPatternMatcher matcher = parser.compile(EventPattern.Who.USER, Arrays.asList(
+                parser.parse(FORMAT, "USER:*:*:account-.*:LOGIN|||account-logins"),
+                parser.parse(FORMAT, "USER:*:*:web.app:LOGIN|||web-logins"),
+                parser.parse(FORMAT, "USER:*:*:*:LOGIN|||logins")));
+
+        assertEquals("account-logins", topic(matcher, "account-console"));
+        assertEquals("account-logins", topic(matcher, "Account-Console"));
+        assertEquals("logins", topic(matcher, "my-account-console"));
+        assertEquals("web-logins", topic(matcher, "web.app"));
+        assertEquals("web-logins", topic(matcher, "web-app")); // Dots match any character, as they always did
+        assertEquals("logins", topic(matcher, "webapp"));
+    }
+
+    @Test
+    void comparesPlainClientIdsIgnoringCase() {
+        final EventPattern pattern = parser.parse(FORMAT, "USER:*:*:android-app:LOGIN");
+        assertNull(pattern.targetPattern);
+        assertTrue(pattern.matches("realm", EventPattern.Result.SUCCESS, "Android-App", "LOGIN"));
+        assertFalse(pattern.matches("realm", EventPattern.Result.SUCCESS, "android-app-2", "LOGIN"));
+    }
+
+    @Test
+    void rejectsMalformedClientIdRegexes() {
+        assertThrows(IllegalArgumentException.class, () -> parser.parse(FORMAT, "USER:*:*:account-(:LOGIN"));
+    }
+
+    private static String topic(EventPatternMatcher matcher, String clientId) {
+        final Event event = new Event();
+        event.setType(EventType.LOGIN);
+        event.setRealmId("realm");
+        event.setClientId(clientId);
+        event.setDetails(Collections.emptyMap());
+        return matcher.match(event).map(pattern -> pattern.topic).orElse(null);
+    }
+
+    private static Event userEvent(String detailKey, String detailValue) {
+        final Event event = new Event();
+        event.setDetails(Collections.singletonMap(detailKey, detailValue));
+        return event;
+    }
+
+    private static AdminEvent adminEvent(String resourcePath, String ipAddress) {
+        final AdminEvent event = new AdminEvent();
+        event.setResourcePath(resourcePath);
+        if (ipAddress != null) {
+            event.setAuthDetails(new AuthDetails());
+            event.getAuthDetails().setIpAddress(ipAddress);
+        }
+        return event;
+    }
+}
@@ -0,0 +1,284 @@
+package com.softrizon.keycloak.providers.events.pubsub.spool;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageSpoolTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsAppendedMessagesInOrderFromTheActiveSegment() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            assertTrue(spool.append(null, message("first")));
+            assertTrue(spool.append(null, message("second")));
+
+            final MessageSpool.Segment segment = spool.nextSegment();
+            final List<MessageSpool.Record> records = spool.read(segment, 10);
+            assertEquals(2, records.size());
+            assertEquals(message("first"), records.get(0).message);
+            assertEquals(message("second"), records.get(1).message);
+            assertNull(records.get(0).topicId);
+
+            spool.commit(segment, records.get(1).endPosition);
+            assertEquals(0, spool.getTotalBytes());
+            assertNull(spool.nextSegment());
+        }
+    }
+
+    @Test
+    void keepsWritingTheActiveSegmentOnceItIsReplayed() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message("first"));
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 10).get(0).endPosition);
+
+            spool.append(null, message("second"));
+            assertSame(segment, spool.nextSegment());
+            final List<MessageSpool.Record> records = spool.read(segment, 10);
+            assertEquals(1, records.size());
+            assertEquals(message("second"), records.get(0).message);
+            assertEquals(1, files(MessageSpool.SEGMENT_SUFFIX).size());
+        }
+    }
+
+    @Test
+    void deletesTheActiveSegmentWhenItIsFullAndDelivered() throws IOException {
+        final PubsubMessage message = message(new String(new char[400]).replace('\0', 'x'));
+        final int recordBytes = MessageSpool.RECORD_HEADER_BYTES + message.getSerializedSize();
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message);
+            spool.append(null, message);
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 10).get(1).endPosition);
+            assertEquals(1, files(MessageSpool.SEGMENT_SUFFIX).size());
+
+            assertTrue(spool.append(null, message)); // Does not fit in the delivered segment anymore
+            assertEquals(1, files(MessageSpool.SEGMENT_SUFFIX).size());
+            assertEquals(recordBytes, spool.getTotalBytes());
+            assertEquals(1, spool.read(spool.nextSegment(), 10).size());
+        }
+    }
+
+    @Test
+    void readsAtMostTheRequestedNumberOfRecords() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            for (int i = 0; i < 5; i++) {
+                spool.append(null, message("message-" + i));
+            }
+
+            final MessageSpool.Segment segment = spool.nextSegment();
+            final List<MessageSpool.Record> first = spool.read(segment, 3);
+            assertEquals(3, first.size());
+
+            spool.commit(segment, first.get(2).endPosition);
+            final List<MessageSpool.Record> rest = spool.read(segment, 10);
+            assertEquals(2, rest.size());
+            assertEquals(message("message-3"), rest.get(0).message);
+        }
+    }
+
+    @Test
+    void resumesAfterTheCommittedPositionOnRestart() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append(null, message("message-" + i));
+            }
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 2).get(1).endPosition);
+        }
+
+        try (MessageSpool spool = open(1 << 20)) {
+            final List<MessageSpool.Record> records = spool.read(spool.nextSegment(), 10);
+            assertEquals(1, records.size());
+            assertEquals(message("message-2"), records.get(0).message);
+        }
+    }
+
+    @Test
+    void replaysTheWholeSegmentWhenTheSavedPositionIsCorrupt() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message("first"));
+            spool.append(null, message("second"));
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 1).get(0).endPosition);
+        }
+        Files.write(files(MessageSpool.OFFSET_SUFFIX).get(0), new byte[]{0, 0, 0, 20, 1, 2, 3, 4});
+
+        try (MessageSpool spool = open(1 << 20)) {
+            assertEquals(2, spool.read(spool.nextSegment(), 10).size());
+        }
+    }
+
+    @Test
+    void deletesFullyDeliveredSegmentsOnRestart() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message("first"));
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 1).get(0).endPosition);
+        }
+
+        try (MessageSpool spool = open(1 << 20)) {
+            assertNull(spool.nextSegment());
+            assertTrue(files(MessageSpool.SEGMENT_SUFFIX).isEmpty());
+            assertTrue(files(MessageSpool.OFFSET_SUFFIX).isEmpty());
+        }
+    }
+
+    @Test
+    void recoversTheRecordsBeforeATruncatedRecord() throws IOException {
+        final int firstEnd;
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message("first"));
+            spool.append(null, message("second"));
+            firstEnd = MessageSpool.RECORD_HEADER_BYTES + message("first").getSerializedSize();
+        }
+        try (FileChannel channel = FileChannel.open(files(MessageSpool.SEGMENT_SUFFIX).get(0),
+                StandardOpenOption.WRITE)) {
+            channel.truncate(firstEnd + MessageSpool.RECORD_HEADER_BYTES + 2);
+        }
+
+        try (MessageSpool spool = open(1 << 20)) {
+            final List<MessageSpool.Record> records = spool.read(spool.nextSegment(), 10);
+            assertEquals(1, records.size());
+            assertEquals(message("first"), records.get(0).message);
+            assertEquals(firstEnd, spool.getTotalBytes());
+        }
+    }
+
+    @Test
+    void recoversTheRecordsBeforeACorruptRecord() throws IOException {
+        final int firstEnd = MessageSpool.RECORD_HEADER_BYTES + message("first").getSerializedSize();
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append(null, message("first"));
+            spool.append(null, message("second"));
+            spool.append(null, message("third"));
+        }
+        try (FileChannel channel = FileChannel.open(files(MessageSpool.SEGMENT_SUFFIX).get(0),
+                StandardOpenOption.WRITE)) {
+            // Flip the last body byte of the second record, its checksum no longer matches
+            final int position = firstEnd + MessageSpool.RECORD_HEADER_BYTES + message("second").getSerializedSize()
+                    - 1;
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xff}), position);
+        }
+
+        try (MessageSpool spool = open(1 << 20)) {
+            final List<MessageSpool.Record> records = spool.read(spool.nextSegment(), 10);
+            assertEquals(1, records.size());
+            assertEquals(message("first"), records.get(0).message);
+
+            // New messages go to a new segment after the recovered one
+            assertTrue(spool.append(null, message("fourth")));
+            assertEquals(2, files(MessageSpool.SEGMENT_SUFFIX).size());
+        }
+    }
+
+    @Test
+    void rollsToANewSegmentWhenTheActiveOneIsFull() throws IOException {
+        final PubsubMessage message = message(new String(new char[400]).replace('\0', 'x'));
+        try (MessageSpool spool = open(1 << 20)) {
+            assertTrue(spool.append(null, message));
+            assertTrue(spool.append(null, message));
+            assertTrue(spool.append(null, message)); // Does not fit in the first segment anymore
+            assertEquals(2, files(MessageSpool.SEGMENT_SUFFIX).size());
+
+            final MessageSpool.Segment first = spool.nextSegment();
+            final List<MessageSpool.Record> records = spool.read(first, 10);
+            assertEquals(2, records.size());
+            spool.commit(first, records.get(1).endPosition);
+
+            final MessageSpool.Segment second = spool.nextSegment();
+            assertEquals(1, spool.read(second, 10).size());
+            assertEquals(1, files(MessageSpool.SEGMENT_SUFFIX).size());
+        }
+    }
+
+    @Test
+    void rejectsMessagesOnceTheSpoolIsFull() throws IOException {
+        final PubsubMessage message = message(new String(new char[400]).replace('\0', 'x'));
+        final int recordBytes = MessageSpool.RECORD_HEADER_BYTES + message.getSerializedSize();
+        try (MessageSpool spool = open(2L * recordBytes)) {
+            assertTrue(spool.append(null, message));
+            assertTrue(spool.append(null, message));
+            assertFalse(spool.append(null, message));
+            assertEquals(2L * recordBytes, spool.getTotalBytes());
+
+            // Committing frees the space again
+            final MessageSpool.Segment segment = spool.nextSegment();
+            spool.commit(segment, spool.read(segment, 10).get(1).endPosition);
+            assertTrue(spool.append(null, message));
+        }
+    }
+
+    @Test
+    void rejectsMessagesLargerThanASegment() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            assertFalse(spool.append(null, message(new String(new char[SEGMENT_BYTES]).replace('\0', 'x'))));
+            assertEquals(0, spool.getTotalBytes());
+        }
+    }
+
+    @Test
+    void keepsTheTopicInAnAttributeStrippedOnRead() throws IOException {
+        final PubsubMessage message = message("routed").toBuilder().putAttributes("realmId", "realm").build();
+        try (MessageSpool spool = open(1 << 20)) {
+            spool.append("audit-topic", message);
+
+            final MessageSpool.Record record = spool.read(spool.nextSegment(), 1).get(0);
+            assertEquals("audit-topic", record.topicId);
+            assertEquals(message, record.message);
+            assertFalse(record.message.containsAttributes(MessageSpool.TOPIC_ATTRIBUTE));
+        }
+    }
+
+    @Test
+    void spoolsTrackedMessagesStillOutstanding() throws IOException {
+        try (MessageSpool spool = open(1 << 20)) {
+            final long delivered = spool.track(null, message("delivered"));
+            spool.track("audit-topic", message("outstanding"));
+            spool.untrack(delivered);
+            spool.spoolOutstanding();
+
+            final List<MessageSpool.Record> records = spool.read(spool.nextSegment(), 10);
+            assertEquals(1, records.size());
+            assertEquals("audit-topic", records.get(0).topicId);
+            assertEquals(message("outstanding"), records.get(0).message);
+        }
+    }
+
+    private MessageSpool open(long maxBytes) throws IOException {
+        return new MessageSpool(directory, maxBytes, SEGMENT_BYTES, MessageSpool.FsyncPolicy.NEVER);
+    }
+
+    private List<Path> files(String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static PubsubMessage message(String data) {
+        return PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build();
+    }
+}